@@ -0,0 +1,171 @@
+/*
+ * Copyright (C) 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package org.odk.rangefinder;
+
+import android.content.Context;
+import android.hardware.Sensor;
+import android.hardware.SensorEvent;
+import android.hardware.SensorEventListener;
+import android.hardware.SensorManager;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+
+import java.lang.reflect.Method;
+
+/**
+ * Reads the device's sensors on a thread of its own, so sensor events don't
+ * wake up the UI thread.  Uses the most stable source the device has: the
+ * fused rotation vector or gravity sensors, else the accelerometer and
+ * gyroscope together, else the accelerometer alone.  Holds the application
+ * context only.
+ */
+public class AndroidSensorSource implements SensorSource, SensorEventListener {
+
+  // From API level 9 the rate can be a period in microseconds.  The fused
+  // sensors are stable enough to be read at a few Hz.
+  private static final int FUSED_SAMPLING_PERIOD_US = 250000;
+  // Lets a sensor hub with a FIFO hold readings back this long and deliver
+  // them together, so the processor can sleep in between.  Short enough
+  // that the displayed inclination doesn't visibly lag.
+  private static final int MAX_REPORT_LATENCY_US = 100000;
+
+  // registerListener with a maximum report latency is API level 19, so it
+  // is looked up by reflection since we build against an older SDK.
+  private static Method registerBatched;
+  static {
+    try {
+      registerBatched = SensorManager.class.getMethod("registerListener",
+          SensorEventListener.class, Sensor.class, int.class, int.class,
+          Handler.class);
+    } catch (Exception e) {
+      // Not available, readings are delivered as they are taken.
+    }
+  }
+
+  private final SensorManager sensorMgr;
+  private boolean picked = false;
+  private Sensor sensor;
+  private Sensor gyroscope;
+  private int rate;
+  private HandlerThread sensorThread;
+  private Handler handler;
+  private volatile Listener listener;
+  private boolean registered = false;
+
+  public AndroidSensorSource(Context c) {
+    sensorMgr = (SensorManager) c.getApplicationContext()
+        .getSystemService(Context.SENSOR_SERVICE);
+  }
+
+  public synchronized int getTypes() {
+    if (!picked) {
+      pickSensors();
+      picked = true;
+    }
+    if (sensor == null) {
+      return 0;
+    }
+    return (1 << sensor.getType())
+        | (gyroscope != null ? 1 << Sensor.TYPE_GYROSCOPE : 0);
+  }
+
+  private void pickSensors() {
+    sensor = sensorMgr.getDefaultSensor(
+        InclinationEstimator.TYPE_ROTATION_VECTOR);
+    if (sensor == null) {
+      sensor = sensorMgr.getDefaultSensor(InclinationEstimator.TYPE_GRAVITY);
+    }
+    rate = FUSED_SAMPLING_PERIOD_US;
+    if (sensor == null) {
+      sensor = sensorMgr.getDefaultSensor(Sensor.TYPE_ACCELEROMETER);
+      gyroscope = sensorMgr.getDefaultSensor(Sensor.TYPE_GYROSCOPE);
+      // Relatively low update rate, unless integrating the gyroscope.
+      rate = gyroscope != null ? SensorManager.SENSOR_DELAY_UI
+          : SensorManager.SENSOR_DELAY_NORMAL;
+    }
+  }
+
+  public synchronized int start(Listener listener) {
+    if (getTypes() == 0) {
+      return 0;
+    }
+    this.listener = listener;
+    if (sensorThread == null) {
+      sensorThread = new HandlerThread("InclinationReader",
+          Process.THREAD_PRIORITY_BACKGROUND);
+      sensorThread.start();
+      handler = new Handler(sensorThread.getLooper());
+    }
+    int types = 0;
+    if (register(sensor)) {
+      types = 1 << sensor.getType();
+      registered = true;
+      if (gyroscope != null && register(gyroscope)) {
+        types |= 1 << Sensor.TYPE_GYROSCOPE;
+      }
+    }
+    return types;
+  }
+
+  /**
+   * Registers with batching where the platform has it.  Sensors without a
+   * FIFO just report as usual.
+   */
+  private boolean register(Sensor s) {
+    if (registerBatched != null) {
+      try {
+        return (Boolean) registerBatched.invoke(sensorMgr, this, s, rate,
+            MAX_REPORT_LATENCY_US, handler);
+      } catch (Exception e) {
+        // Fall back to the plain registration.
+      }
+    }
+    return sensorMgr.registerListener(this, s, rate, handler);
+  }
+
+  public synchronized void stop() {
+    if (registered) {
+      sensorMgr.unregisterListener(this);
+      registered = false;
+    }
+    listener = null;
+  }
+
+  public synchronized void release() {
+    stop();
+    if (sensorThread != null) {
+      sensorThread.quit();
+      sensorThread = null;
+      handler = null;
+    }
+  }
+
+  @Override
+  public void onAccuracyChanged(Sensor sensor, int accuracy) {
+  }
+
+  @Override
+  public void onSensorChanged(SensorEvent event) {
+    Listener l = listener;
+    if (l != null) {
+      float [] v = event.values;
+      l.onReading(event.sensor.getType(), v[0], v[1], v[2], event.timestamp);
+    }
+  }
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright (C) 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package org.odk.rangefinder;
+
+/**
+ * Immutable snapshot of a user's calibration: eye separation and arm length,
+ * kept in meters, and whether they want imperial units.  The centimeter or
+ * inch values shown in the preferences are derived on demand.  A value of 0
+ * means it hasn't been entered.
+ */
+public final class Calibration {
+
+  public static final float CM_PER_INCH = 2.54f;
+
+  /** Nothing entered yet. */
+  public static final Calibration EMPTY = new Calibration(false, 0, 0);
+
+  private final boolean imperial;
+  private final float eyeSeparation;  // meters
+  private final float armLength;  // meters
+
+  public Calibration(boolean imperial, float eyeSeparation, float armLength) {
+    this.imperial = imperial;
+    this.eyeSeparation = eyeSeparation;
+    this.armLength = armLength;
+  }
+
+  /**
+   * Converts a value as entered by the user, in inches or centimeters, to
+   * meters.
+   */
+  public static float toMeters(float value, boolean imperial) {
+    if (imperial) {
+      return value * CM_PER_INCH / 100;  // inch to m
+    }
+    return value / 100;  // cm to m
+  }
+
+  /**
+   * @return the calibration for values as the preference screen saves
+   *     them, in inches or centimeters; values that aren't numbers are 0
+   */
+  public static Calibration parse(boolean imperial, String eyeSeparation,
+      String armLength) {
+    return new Calibration(imperial,
+        toMeters(parseValue(eyeSeparation), imperial),
+        toMeters(parseValue(armLength), imperial));
+  }
+
+  /**
+   * @return a value as saved by the preference screen, or 0 if it isn't a
+   *     number
+   */
+  public static float parseValue(String value) {
+    if (value == null || value.length() == 0) {
+      return 0;  // Not entered, without throwing to find out.
+    }
+    try {
+      return Float.parseFloat(value);
+    } catch (NumberFormatException e) {
+      return 0;
+    }
+  }
+
+  /** Converts meters to inches or centimeters. */
+  public static float fromMeters(float meters, boolean imperial) {
+    if (imperial) {
+      return meters * 100 / CM_PER_INCH;
+    }
+    return meters * 100;
+  }
+
+  public boolean isImperial() {
+    return imperial;
+  }
+
+  public float getEyeSeparationMeters() {
+    return eyeSeparation;
+  }
+
+  public float getArmLengthMeters() {
+    return armLength;
+  }
+
+  /** @return eye separation in inches or centimeters, per the units */
+  public float getEyeValue() {
+    return fromMeters(eyeSeparation, imperial);
+  }
+
+  /** @return arm length in inches or centimeters, per the units */
+  public float getArmValue() {
+    return fromMeters(armLength, imperial);
+  }
+
+  /** @return true if both the eye separation and arm length are set */
+  public boolean isComplete() {
+    return eyeSeparation != 0 && armLength != 0;
+  }
+
+  public Calibration withImperial(boolean imperial) {
+    return new Calibration(imperial, eyeSeparation, armLength);
+  }
+
+  public Calibration withEyeSeparationMeters(float meters) {
+    return new Calibration(imperial, meters, armLength);
+  }
+
+  public Calibration withArmLengthMeters(float meters) {
+    return new Calibration(imperial, eyeSeparation, meters);
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (!(o instanceof Calibration)) {
+      return false;
+    }
+    Calibration c = (Calibration) o;
+    // Compares bits, as hashCode does, so -0 and NaN key caches properly.
+    return imperial == c.imperial
+        && Float.floatToIntBits(eyeSeparation)
+            == Float.floatToIntBits(c.eyeSeparation)
+        && Float.floatToIntBits(armLength) == Float.floatToIntBits(c.armLength);
+  }
+
+  @Override
+  public int hashCode() {
+    int h = Float.floatToIntBits(eyeSeparation);
+    h = 31 * h + Float.floatToIntBits(armLength);
+    return 31 * h + (imperial ? 1 : 0);
+  }
+}
@@ -0,0 +1,428 @@
+/*
+ * Copyright (C) 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package org.odk.rangefinder;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Everything the range card does except drawing: takes the input that moves
+ * the red line, says where it has to be redrawn, and solves the distance,
+ * range table and tick marks for the calibration once a frame.  RangeCard
+ * feeds it events from its views and draws what it solved; on a plain JVM
+ * recorded events can be fed to it the same way, since it has no Android
+ * dependencies.
+ * <p>
+ * Not thread safe, RangeCard calls it holding its own lock, except for the
+ * input methods and {@link #getLabelIfSolved}, which the UI thread calls
+ * without it so that a slow frame never holds up input.  Input only posts
+ * to the cursor, see CursorController.  {@link #precompute} may also run
+ * without the lock.
+ */
+public final class CardController {
+
+  /** Stored for inclination when there's no reading. */
+  public static final int NO_MEASUREMENT = Integer.MIN_VALUE;
+
+  /** Told when input moves the red line, so that it is redrawn. */
+  public interface Listener {
+    /**
+     * @param pixel where the line will be in the next frame
+     * @param eventTime uptime of the input, in milliseconds
+     */
+    void onCursorMoved(int pixel, long eventTime);
+  }
+
+  /** What the card solves for one calibration at the current width. */
+  static final class Solved {
+    final RangeTable table;
+    final TickLayout ticks;
+
+    Solved(RangeTable table, TickLayout ticks) {
+      this.table = table;
+      this.ticks = ticks;
+    }
+  }
+
+  // Tables and tick positions solved for recently used calibrations, so
+  // switching between calibration profiles is a lookup.
+  private static final int SOLVED_CACHE_SIZE = 8;
+
+  private final float xdpi;
+  private final float xdpm;  // dots per meter, in x dimension...
+  private final InclinationReader inclinationReader;
+  private final Listener listener;
+  private final LabelFormatter formatter;
+  private final TickLayout.TextMeasurer measurer;
+  private final String meterAbbr;
+  private final String feetAbbr;
+  private final String infinity;
+
+  // Input received since the last frame, applied when the frame is drawn.
+  private final CursorController cursor;
+
+  // Read by the input methods without the card's lock.
+  private volatile Calibration calibration = Calibration.EMPTY;
+  private volatile int width = 0;
+
+  // The red line, and the distance it was last solved for.
+  private int pixel = 40;
+  private float distance = 0;
+  private float accuracy = 0;
+  private String label = "";
+  private int inclinationAtLastAdjustment = NO_MEASUREMENT;
+
+  private volatile RangeTable rangeTable;  // Solved for every pixel column.
+  private TickLayout ticks;  // Where the tick marks and labels go.
+  private int solvedWidth = 0;
+  private final Map<Calibration, Solved> solvedCache =
+      new LinkedHashMap<Calibration, Solved>(SOLVED_CACHE_SIZE, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(
+            Map.Entry<Calibration, Solved> eldest) {
+          return size() > SOLVED_CACHE_SIZE;
+        }
+      };
+
+  // Work done so far, for the stats and replayed traces.
+  private boolean builtTable = false;
+  private boolean builtSinceSolve = false;
+  private long solves = 0;
+  private long tableBuilds = 0;
+
+  /**
+   * @param xdpi pixels per inch across the card
+   * @param measurer measures tick labels, may be called from any thread
+   */
+  public CardController(float xdpi, InclinationReader inclinationReader,
+      Listener listener, LabelFormatter formatter,
+      TickLayout.TextMeasurer measurer, String meterAbbr, String feetAbbr,
+      String infinity) {
+    this.xdpi = xdpi;
+    this.xdpm = RangeMath.dotsPerMeter(xdpi);
+    this.inclinationReader = inclinationReader;
+    this.listener = listener;
+    this.formatter = formatter;
+    this.measurer = measurer;
+    this.meterAbbr = meterAbbr;
+    this.feetAbbr = feetAbbr;
+    this.infinity = infinity;
+    cursor = new CursorController(xdpi);
+  }
+
+  /**
+   * Sets the width of the card, the last pixel the red line can be on.
+   * @return true if what was solved had to be dropped, since it was for
+   *     another width
+   */
+  public boolean setWidth(int width) {
+    this.width = width;
+    if (width == solvedWidth) {
+      return false;
+    }
+    rangeTable = null;
+    ticks = null;
+    solvedCache.clear();
+    solvedWidth = width;
+    return true;
+  }
+
+  public int getWidth() {
+    return width;
+  }
+
+  /**
+   * Switches to another calibration, picking up what was solved for it
+   * before if it is still cached.
+   * @return true if it is different from the current one
+   */
+  public boolean setCalibration(Calibration c) {
+    if (c.equals(calibration)) {
+      return false;
+    }
+    calibration = c;
+    Solved solved = solvedCache.get(c);
+    rangeTable = solved != null ? solved.table : null;
+    ticks = solved != null ? solved.ticks : null;
+    return true;
+  }
+
+  public Calibration getCalibration() {
+    return calibration;
+  }
+
+  /** Sets whether drags are extrapolated about a frame ahead. */
+  public void setPrediction(boolean prediction) {
+    cursor.setPrediction(prediction);
+  }
+
+  /**
+   * Adds a touch sample batched up in a move event, oldest first, before
+   * the event itself is passed to {@link #touch}.
+   */
+  public void touchHistory(float x, long time) {
+    cursor.touchHistory(x, time);
+  }
+
+  /**
+   * Drags the red line.
+   * @param action CursorController.ACTION_DOWN, ACTION_MOVE or ACTION_UP
+   * @param time uptime of the event, in milliseconds
+   */
+  public void touch(int action, float x, long time) {
+    cursor.touch(action, x, time);
+    moved(time);
+  }
+
+  /** Moves the red line for a trackball event, see CursorController. */
+  public void trackball(float x, long time) {
+    cursor.trackball(x, time);
+    moved(time);
+  }
+
+  /**
+   * Starts a press of an arrow button or key, which moves the line a pixel.
+   * @param direction 1 or -1
+   */
+  public void press(int direction, long time) {
+    cursor.press(direction, time);
+    moved(time);
+  }
+
+  /**
+   * Moves the line for as long as the press has been held, see
+   * CursorController.
+   */
+  public void repeat(long time) {
+    if (cursor.repeat(time)) {
+      moved(time);
+    }
+  }
+
+  /** Ends the press. */
+  public void release() {
+    cursor.release();
+  }
+
+  private void moved(long time) {
+    listener.onCursorMoved(cursor.getTarget(width), time);
+  }
+
+  /**
+   * Applies the input received since the last frame, so the red line and
+   * distance are updated at most once a frame however often input arrives.
+   * Takes the inclination reading that goes with the new position.
+   * @return true if there was any
+   */
+  public boolean applyPendingInput() {
+    if (!cursor.apply(width)) {
+      return false;
+    }
+    pixel = cursor.getPixel();
+    if (inclinationReader.isSupported()) {
+      inclinationAtLastAdjustment = inclinationReader.getInclination();
+    }
+    return true;
+  }
+
+  /**
+   * Solves the distance at the red line, building the range table if the
+   * calibration changed or the line is past its end.
+   * @return false if the calibration isn't complete
+   */
+  public boolean solve() {
+    builtTable = false;
+    if (xdpm == 0 || !calibration.isComplete()) {
+      return false;
+    }
+    if (rangeTable == null || !rangeTable.matches(pixel, xdpm,
+        calibration.getEyeSeparationMeters(),
+        calibration.getArmLengthMeters(), calibration.isImperial())) {
+      useSolved(pixel);
+    }
+    builtTable = builtSinceSolve;
+    builtSinceSolve = false;
+    solves++;
+    distance = rangeTable.getDistance(pixel);
+    accuracy = rangeTable.getAccuracy(pixel);
+    label = rangeTable.getLabel(pixel);
+    return true;
+  }
+
+  /**
+   * @return true if a range table had to be built for the last
+   *     {@link #solve}, by it or by {@link #getTicks} before it
+   */
+  public boolean builtTable() {
+    return builtTable;
+  }
+
+  /**
+   * @return where the tick marks go across the card, or null until the
+   *     calibration is complete and the width known
+   */
+  public TickLayout getTicks() {
+    if (xdpm == 0 || width <= 0 || !calibration.isComplete()) {
+      return null;
+    }
+    if (ticks == null) {
+      useSolved(0);
+    }
+    return ticks;
+  }
+
+  /**
+   * Points the table and ticks at what is cached for the calibration,
+   * solving and caching them first if they aren't, or the table doesn't
+   * reach pixel.  Both are always solved together, so whichever of drawing
+   * the ticks and solving the distance comes first does the work once.
+   */
+  private void useSolved(int pixel) {
+    Solved solved = solvedCache.get(calibration);
+    if (solved == null || solved.table.getLastPixel() < pixel) {
+      solved = solve(calibration, Math.max(width, pixel));
+      solvedCache.put(calibration, solved);
+      builtSinceSolve = true;
+      tableBuilds++;
+    }
+    rangeTable = solved.table;
+    ticks = solved.ticks;
+  }
+
+  /**
+   * @return the label at pixel, or null if it hasn't been solved for the
+   *     current calibration
+   */
+  public String getLabelIfSolved(int pixel) {
+    // Read once each, they may be replaced by a frame meanwhile.
+    RangeTable table = rangeTable;
+    Calibration c = calibration;
+    if (table == null || !table.matches(pixel, xdpm,
+        c.getEyeSeparationMeters(), c.getArmLengthMeters(),
+        c.isImperial())) {
+      return null;
+    }
+    return table.getLabel(pixel);
+  }
+
+  /**
+   * @return true if c is complete and hasn't been solved at the current
+   *     width yet
+   */
+  public boolean needsPrecompute(Calibration c) {
+    return width > 0 && c.isComplete() && !solvedCache.containsKey(c);
+  }
+
+  /**
+   * Solves the table and ticks for a calibration ahead of time, so that
+   * switching to it later doesn't.  Only uses final fields, so it can run
+   * on any thread; pass the result to {@link #addPrecomputed}.
+   */
+  Solved precompute(Calibration c, int width) {
+    return solve(c, width);
+  }
+
+  /** Caches what {@link #precompute} solved, if the width is the same. */
+  void addPrecomputed(Calibration c, int width, Solved solved) {
+    if (width == solvedWidth) {
+      solvedCache.put(c, solved);
+    }
+  }
+
+  /** @return a copy of what is cached, to hand over to a new card */
+  Map<Calibration, Solved> getSolved() {
+    return new LinkedHashMap<Calibration, Solved>(solvedCache);
+  }
+
+  /** Takes over what another card solved at the given width. */
+  void reuseSolved(Map<Calibration, Solved> solved, int width) {
+    solvedCache.putAll(solved);
+    solvedWidth = width;
+  }
+
+  /** Solves every pixel column up to lastPixel and the tick marks. */
+  private Solved solve(Calibration c, int lastPixel) {
+    return new Solved(new RangeTable(lastPixel, xdpm,
+        c.getEyeSeparationMeters(), c.getArmLengthMeters(), c.isImperial(),
+        formatter, meterAbbr, feetAbbr, infinity),
+        solveTicks(c, lastPixel));
+  }
+
+  /**
+   * @return tick marks across width pixels, at least a thirty-second of an
+   *     inch apart and with labels a twentieth of an inch apart
+   */
+  private TickLayout solveTicks(Calibration c, int width) {
+    return new TickLayout(xdpm, c.getEyeSeparationMeters(),
+        c.getArmLengthMeters(), c.isImperial(), width, formatter,
+        c.isImperial() ? feetAbbr : meterAbbr, measurer, xdpi / 32,
+        xdpi / 20);
+  }
+
+  /**
+   * Writes the inclination reading as it is shown on the card.
+   * @return the number of chars written
+   */
+  public int formatInclination(String prefix, String units, char [] buf) {
+    int n = formatter.appendString(prefix, buf, 0);
+    n = formatter.appendInt(inclinationReader.getInclination(), buf, n);
+    return formatter.appendString(units, buf, n);
+  }
+
+  public int getPixel() {
+    return pixel;
+  }
+
+  /** Puts the red line at pixel right away, dropping pending input. */
+  public void setPixel(int pixel) {
+    this.pixel = pixel;
+    cursor.setPixel(pixel);
+  }
+
+  /** @return distance in meters, as of the last {@link #solve} */
+  public float getDistance() {
+    return distance;
+  }
+
+  /** @return accuracy in meters, or RangeMath.INFINITE */
+  public float getAccuracy() {
+    return accuracy;
+  }
+
+  public String getLabel() {
+    return label;
+  }
+
+  public int getInclinationAtLastAdjustment() {
+    return inclinationAtLastAdjustment;
+  }
+
+  public void setInclinationAtLastAdjustment(int inclination) {
+    inclinationAtLastAdjustment = inclination;
+  }
+
+  /** @return how many times the distance has been solved */
+  public long getSolveCount() {
+    return solves;
+  }
+
+  /** @return how many range tables have been built while solving */
+  public long getTableBuildCount() {
+    return tableBuilds;
+  }
+}
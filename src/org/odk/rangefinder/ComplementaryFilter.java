@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package org.odk.rangefinder;
+
+/**
+ * Estimates gravity in device coordinates by combining the gyroscope and the
+ * accelerometer.  The gyroscope rotates the estimate between readings, which
+ * is smooth but drifts, and each accelerometer reading pulls it back a little,
+ * which removes the drift without passing hand shake through.  Every update is
+ * constant time and allocation free.  Not thread safe, it is meant to be fed
+ * from a single sensor thread.
+ */
+public final class ComplementaryFilter {
+
+  /** Gaps longer than this are not integrated, in seconds. */
+  private static final float MAX_GYRO_GAP = 0.5f;
+  private static final float NANOS_PER_SECOND = 1e9f;
+
+  private final float timeConstant;
+  private float gx;
+  private float gy;
+  private float gz;
+  private boolean initialized = false;
+  private long lastGyroTime = 0;
+  private long lastAccelTime = 0;
+
+  /**
+   * @param timeConstant how long, in seconds, the gyroscope is trusted over
+   *     the accelerometer
+   */
+  public ComplementaryFilter(float timeConstant) {
+    this.timeConstant = timeConstant;
+  }
+
+  public void reset() {
+    initialized = false;
+    lastGyroTime = 0;
+    lastAccelTime = 0;
+  }
+
+  /**
+   * Adds an accelerometer reading, in m/s^2.
+   * @param timestamp event time in nanoseconds
+   */
+  public void addAccelerometer(float x, float y, float z, long timestamp) {
+    if (!initialized) {
+      gx = x;
+      gy = y;
+      gz = z;
+      initialized = true;
+    } else {
+      float dt = (timestamp - lastAccelTime) / NANOS_PER_SECOND;
+      if (dt <= 0 || dt > MAX_GYRO_GAP) {
+        dt = MAX_GYRO_GAP;
+      }
+      float alpha = timeConstant / (timeConstant + dt);
+      gx = alpha * gx + (1 - alpha) * x;
+      gy = alpha * gy + (1 - alpha) * y;
+      gz = alpha * gz + (1 - alpha) * z;
+    }
+    lastAccelTime = timestamp;
+  }
+
+  /**
+   * Adds a gyroscope reading, in rad/s around the device axes.
+   * @param timestamp event time in nanoseconds
+   */
+  public void addGyroscope(float wx, float wy, float wz, long timestamp) {
+    long last = lastGyroTime;
+    lastGyroTime = timestamp;
+    if (!initialized || last == 0) {
+      return;
+    }
+    float dt = (timestamp - last) / NANOS_PER_SECOND;
+    if (dt <= 0 || dt > MAX_GYRO_GAP) {
+      return;
+    }
+    // Gravity is fixed in the world, so in device coordinates it turns the
+    // other way from the device: dg/dt = g x w.
+    float x = gx + (gy * wz - gz * wy) * dt;
+    float y = gy + (gz * wx - gx * wz) * dt;
+    float z = gz + (gx * wy - gy * wx) * dt;
+    gx = x;
+    gy = y;
+    gz = z;
+  }
+
+  public boolean hasEstimate() {
+    return initialized;
+  }
+
+  /** @return the inclination in radians, see InclinationFilter */
+  public double inclination() {
+    return InclinationFilter.inclination(gx, gy, gz);
+  }
+}
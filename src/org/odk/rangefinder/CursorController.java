@@ -0,0 +1,283 @@
+/*
+ * Copyright (C) 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package org.odk.rangefinder;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Position of the red line and the input that moves it.  Touch, trackball and
+ * key input only record where the line should go, and {@link #apply} moves it
+ * there once a frame.  Has no Android dependencies, so recorded input can be
+ * replayed on a plain JVM.
+ * <p>
+ * The input methods are called on one thread and {@link #apply} on
+ * another, the render thread.  The pending input passes between them in a
+ * single atomic, so neither ever waits for the other; the rest of the state
+ * belongs to the input thread.  {@link #setPixel} must not race apply.
+ * <p>
+ * Arrow buttons and keys move the line a pixel per tap.  Held down, they
+ * move it at a speed that doubles every DOUBLING_MS, from an eighth of an inch
+ * a second up to two inches a second, so the line crosses the card in a few
+ * seconds but can still be stopped on a pixel.  A continuous trackball roll
+ * speeds up the same way.
+ */
+public final class CursorController {
+
+  // Same values as MotionEvent's.
+  public static final int ACTION_DOWN = 0;
+  public static final int ACTION_UP = 1;
+  public static final int ACTION_MOVE = 2;
+
+  private static final int NO_PENDING = Integer.MIN_VALUE;
+  private static final long NONE = pack(NO_PENDING, 0);
+  private static final long VELOCITY_WINDOW_MS = 50;
+  private static final long PREDICTION_MS = 16;  // about one frame
+  private static final int HISTORY = 16;
+  /** How long a press is held before it starts repeating. */
+  public static final long REPEAT_DELAY_MS = 300;
+  private static final long DOUBLING_MS = 250;
+  // Trackball events further apart than this start a new roll.
+  private static final long TRACKBALL_ROLL_MS = 100;
+
+  private final float maxLead;
+  private final float minSpeed;  // pixels per millisecond
+  private final float maxSpeed;
+  private boolean prediction = false;
+  private volatile int pixel = 0;
+  // Where a touch put the line, or NO_PENDING, in the high half, and the
+  // pixels it has been moved by since in the low half.
+  private final AtomicLong pending = new AtomicLong(NONE);
+
+  // The button or key being held, and how far it has moved the line.
+  private int holdDirection = 0;
+  private long holdStart = 0;
+  private long holdLast = 0;
+  private float holdCarry = 0;  // Fraction of a pixel not moved yet.
+  private int rollDirection = 0;
+  private long rollStart = 0;
+  private long rollLast = 0;
+
+  // Recent touch samples, to measure the finger's speed.
+  private final float [] historyX = new float[HISTORY];
+  private final long [] historyTime = new long[HISTORY];
+  private int historyNext = 0;
+  private int historyCount = 0;
+
+  /**
+   * @param xdpi pixels per inch across the card
+   */
+  public CursorController(float xdpi) {
+    // Never lead the finger by more than an eighth of an inch.
+    maxLead = xdpi / 8;
+    minSpeed = xdpi / 8 / 1000;
+    maxSpeed = xdpi * 2 / 1000;
+  }
+
+  /** Sets whether moves are extrapolated about a frame ahead. */
+  public void setPrediction(boolean prediction) {
+    this.prediction = prediction;
+  }
+
+  public int getPixel() {
+    return pixel;
+  }
+
+  /** Moves the line right away, dropping any pending input. */
+  public void setPixel(int pixel) {
+    this.pixel = pixel;
+    pending.set(NONE);
+  }
+
+  /**
+   * Adds a touch sample that was batched up in a move event, oldest first,
+   * before calling {@link #touch} with the newest.
+   */
+  public void touchHistory(float x, long time) {
+    historyX[historyNext] = x;
+    historyTime[historyNext] = time;
+    historyNext = (historyNext + 1) % HISTORY;
+    if (historyCount < HISTORY) {
+      historyCount++;
+    }
+  }
+
+  /**
+   * Makes the newest position of a drag the pending position.  Only the last
+   * sample counts, the earlier ones just give the speed, which optionally
+   * moves the line up to a frame ahead while the finger is moving.  Where
+   * the finger is lifted is always taken as is.
+   * @param action ACTION_DOWN, ACTION_MOVE or ACTION_UP
+   * @param time event time in milliseconds
+   */
+  public void touch(int action, float x, long time) {
+    if (action == ACTION_DOWN) {
+      historyCount = 0;
+    }
+    float velocity = velocity(x, time);
+    touchHistory(x, time);
+    if (prediction && action == ACTION_MOVE) {
+      x += Math.max(-maxLead, Math.min(maxLead, velocity * PREDICTION_MS));
+    }
+    pending.set(pack((int) x, 0));
+  }
+
+  /**
+   * @return pixels per millisecond from the oldest sample in the last
+   *     VELOCITY_WINDOW_MS, or the previous one if they are all older
+   */
+  private float velocity(float x, long time) {
+    if (historyCount == 0) {
+      return 0;
+    }
+    int newest = (historyNext + HISTORY - 1) % HISTORY;
+    float fromX = historyX[newest];
+    long fromTime = historyTime[newest];
+    for (int i = 1; i < historyCount; i++) {
+      int j = (historyNext + HISTORY - 1 - i) % HISTORY;
+      if (time - historyTime[j] > VELOCITY_WINDOW_MS) {
+        break;
+      }
+      fromX = historyX[j];
+      fromTime = historyTime[j];
+    }
+    return time > fromTime ? (x - fromX) / (time - fromTime) : 0;
+  }
+
+  /** Moves the line by some pixels as of the next frame. */
+  public void nudge(int pixels) {
+    while (true) {
+      long p = pending.get();
+      if (pending.compareAndSet(p,
+          pack(pendingPixel(p), pendingDelta(p) + pixels))) {
+        return;
+      }
+    }
+  }
+
+  /**
+   * Starts a press of an arrow button or key, which moves the line a pixel
+   * right away.
+   * @param direction 1 or -1
+   * @param time uptime of the press, in milliseconds
+   */
+  public void press(int direction, long time) {
+    nudge(direction);
+    holdDirection = direction;
+    holdStart = time;
+    holdLast = time + REPEAT_DELAY_MS;
+    holdCarry = 0;
+  }
+
+  /**
+   * Moves the line for the time the press has been held since the last
+   * call, once it has been held for REPEAT_DELAY_MS.  Call it with key
+   * repeats, or every frame or so while a button is held.
+   * @return true if the line moved
+   */
+  public boolean repeat(long time) {
+    if (holdDirection == 0 || time <= holdLast) {
+      return false;
+    }
+    holdCarry += speed(time - holdStart - REPEAT_DELAY_MS)
+        * (time - holdLast);
+    holdLast = time;
+    int pixels = (int) holdCarry;
+    holdCarry -= pixels;
+    nudge(holdDirection * pixels);
+    return pixels != 0;
+  }
+
+  /** Ends the press. */
+  public void release() {
+    holdDirection = 0;
+  }
+
+  /**
+   * Moves the line for a trackball event.  A single event moves it at
+   * least a pixel; a roll that keeps going speeds it up.
+   * @param x the event's relative x
+   * @param time uptime of the event, in milliseconds
+   */
+  public void trackball(float x, long time) {
+    int direction = x > 0 ? 1 : -1;
+    if (direction != rollDirection || time - rollLast > TRACKBALL_ROLL_MS) {
+      rollDirection = direction;
+      rollStart = time;
+    }
+    rollLast = time;
+    float gain = speed(time - rollStart) / minSpeed;
+    int pixels = (int) (x * 10 * gain);
+    nudge(pixels != 0 ? pixels : direction);
+  }
+
+  /** @return pixels per millisecond after accelerating for some time */
+  private float speed(long millis) {
+    if (millis <= 0) {
+      return minSpeed;
+    }
+    double speed = minSpeed * Math.pow(2, (double) millis / DOUBLING_MS);
+    return (float) Math.min(maxSpeed, speed);
+  }
+
+  public boolean hasPending() {
+    return pending.get() != NONE;
+  }
+
+  /**
+   * @return where the line will be after the next {@link #apply}, within 0
+   *     and width
+   */
+  public int getTarget(int width) {
+    return target(pending.get(), width);
+  }
+
+  /**
+   * Moves the line to where the input since the last frame put it.
+   * @param width the last pixel the line can be on
+   * @return true if there was any input
+   */
+  public boolean apply(int width) {
+    long p = pending.getAndSet(NONE);
+    if (p == NONE) {
+      return false;
+    }
+    pixel = target(p, width);
+    return true;
+  }
+
+  private int target(long p, int width) {
+    int target = pendingPixel(p) != NO_PENDING ? pendingPixel(p) : pixel;
+    return clamp(target + pendingDelta(p), width);
+  }
+
+  private static long pack(int pendingPixel, int pendingDelta) {
+    return ((long) pendingPixel << 32) | (pendingDelta & 0xFFFFFFFFL);
+  }
+
+  private static int pendingPixel(long p) {
+    return (int) (p >> 32);
+  }
+
+  private static int pendingDelta(long p) {
+    return (int) p;
+  }
+
+  private static int clamp(int pixel, int width) {
+    return Math.max(0, Math.min(width, pixel));
+  }
+}
@@ -0,0 +1,213 @@
+/*
+ * Copyright (C) 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package org.odk.rangefinder;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Counters and fixed bucket histograms of how the range card performs: how
+ * long frames take to draw, how often the distance is solved, and how long
+ * touch and sensor input take to reach the screen.  Recording only updates
+ * preallocated primitives, so it can stay on while measuring.  The caller
+ * takes the times, so this doesn't depend on any clock.
+ */
+public final class FrameStats {
+
+  /** Lines written by {@link #formatLine}. */
+  public static final int LINES = 4;
+
+  // Upper bounds of the buckets, the last bucket has no upper bound.
+  private static final int [] DRAW_BOUNDS_US = {250, 500, 1000, 2000, 4000,
+      8000, 12000, 16000, 20000, 33000, 50000, 100000};
+  private static final int [] LATENCY_BOUNDS_MS = {4, 8, 12, 16, 20, 25, 33,
+      50, 66, 100, 150, 250, 500};
+
+  private final Histogram drawTime =
+      new Histogram("draw_us", DRAW_BOUNDS_US);
+  private final Histogram touchLatency =
+      new Histogram("touch_to_draw_ms", LATENCY_BOUNDS_MS);
+  private final Histogram sensorLatency =
+      new Histogram("sensor_to_draw_ms", LATENCY_BOUNDS_MS);
+  private long frames = 0;
+  private long solves = 0;
+  private long tableBuilds = 0;
+
+  /**
+   * Counts of values falling in each of a fixed set of buckets.
+   */
+  public static final class Histogram {
+
+    private final String name;
+    private final int [] bounds;
+    private final long [] counts;
+    private long count = 0;
+    private long sum = 0;
+    private int max = 0;
+
+    public Histogram(String name, int [] bounds) {
+      this.name = name;
+      this.bounds = bounds;
+      counts = new long[bounds.length + 1];
+    }
+
+    public void add(int value) {
+      int i = 0;
+      while (i < bounds.length && value > bounds[i]) {
+        i++;
+      }
+      counts[i]++;
+      count++;
+      sum += value;
+      if (value > max) {
+        max = value;
+      }
+    }
+
+    public long getCount() {
+      return count;
+    }
+
+    public int getMax() {
+      return max;
+    }
+
+    public int getMean() {
+      return count == 0 ? 0 : (int) (sum / count);
+    }
+
+    /**
+     * @return the upper bound of the bucket holding the given percentile,
+     *     or the maximum if that is the last bucket
+     */
+    public int getPercentile(int percent) {
+      long rank = (count * percent + 99) / 100;
+      long seen = 0;
+      for (int i = 0; i < bounds.length; i++) {
+        seen += counts[i];
+        if (seen >= rank && seen > 0) {
+          return Math.min(bounds[i], max);
+        }
+      }
+      return max;
+    }
+
+    void reset() {
+      for (int i = 0; i < counts.length; i++) {
+        counts[i] = 0;
+      }
+      count = 0;
+      sum = 0;
+      max = 0;
+    }
+
+    void writeTo(Writer out) throws IOException {
+      out.write(name + " count=" + count + " mean=" + getMean()
+          + " p50=" + getPercentile(50) + " p95=" + getPercentile(95)
+          + " max=" + max + "\n");
+      for (int i = 0; i < counts.length; i++) {
+        out.write(name + (i < bounds.length ? " <=" + bounds[i] : " >"
+            + bounds[bounds.length - 1]) + " " + counts[i] + "\n");
+      }
+    }
+  }
+
+  public synchronized void recordFrame(long drawNanos) {
+    frames++;
+    drawTime.add((int) Math.min(Integer.MAX_VALUE, drawNanos / 1000));
+  }
+
+  /** @param builtTable true if the range table had to be solved again */
+  public synchronized void recordSolve(boolean builtTable) {
+    solves++;
+    if (builtTable) {
+      tableBuilds++;
+    }
+  }
+
+  public synchronized void recordTouchLatency(long millis) {
+    touchLatency.add((int) Math.min(Integer.MAX_VALUE, millis));
+  }
+
+  public synchronized void recordSensorLatency(long millis) {
+    sensorLatency.add((int) Math.min(Integer.MAX_VALUE, millis));
+  }
+
+  public synchronized void reset() {
+    frames = 0;
+    solves = 0;
+    tableBuilds = 0;
+    drawTime.reset();
+    touchLatency.reset();
+    sensorLatency.reset();
+  }
+
+  /**
+   * Writes one line of the summary shown on the card into buf.
+   * @param line 0 to LINES - 1
+   * @return the offset just past the last written char
+   */
+  public synchronized int formatLine(int line, LabelFormatter formatter,
+      char [] buf) {
+    switch (line) {
+      case 0:
+        int n = formatter.appendString("frames ", buf, 0);
+        n = formatter.appendInt((int) frames, buf, n);
+        n = formatter.appendString(" solves ", buf, n);
+        n = formatter.appendInt((int) solves, buf, n);
+        n = formatter.appendString(" tables ", buf, n);
+        return formatter.appendInt((int) tableBuilds, buf, n);
+      case 1:
+        return formatMillis("draw ms", drawTime, 1000, formatter, buf);
+      case 2:
+        return formatMillis("touch ms", touchLatency, 1, formatter, buf);
+      default:
+        return formatMillis("sensor ms", sensorLatency, 1, formatter, buf);
+    }
+  }
+
+  private static int formatMillis(String label, Histogram h, int perMilli,
+      LabelFormatter formatter, char [] buf) {
+    int n = formatter.appendString(label, buf, 0);
+    n = formatter.appendString(" p50 ", buf, n);
+    n = formatter.appendFixed((float) h.getPercentile(50) / perMilli, 1,
+        false, buf, n);
+    n = formatter.appendString(" p95 ", buf, n);
+    n = formatter.appendFixed((float) h.getPercentile(95) / perMilli, 1,
+        false, buf, n);
+    n = formatter.appendString(" max ", buf, n);
+    return formatter.appendFixed((float) h.getMax() / perMilli, 1, false, buf,
+        n);
+  }
+
+  /**
+   * Writes all the counters and buckets as text, one value per line.
+   * @param device describes the phone, to compare runs on different models
+   */
+  public synchronized void writeTo(Writer out, String device)
+      throws IOException {
+    out.write("device " + device + "\n");
+    out.write("frames " + frames + "\n");
+    out.write("solves " + solves + "\n");
+    out.write("table_builds " + tableBuilds + "\n");
+    drawTime.writeTo(out);
+    touchLatency.writeTo(out);
+    sensorLatency.writeTo(out);
+    out.flush();
+  }
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package org.odk.rangefinder;
+
+import android.content.Context;
+import android.content.res.AssetManager;
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.drawable.BitmapDrawable;
+import android.graphics.drawable.Drawable;
+import android.text.Html;
+import android.text.Spanned;
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+
+/**
+ * The help page, parsed once from assets/help.html into styled text for a
+ * plain TextView, with its images decoded no larger than they are shown.
+ * Much lighter than loading the page in a WebView each time.  Tables aren't
+ * supported by Html, their cells just run on as paragraphs.  Can be loaded
+ * on any thread.
+ */
+final class HelpText {
+
+  private static final String TAG = "RangeFinder";
+  private static final String HELP_FILE = "help.html";
+
+  private static Spanned text;
+  private static int textWidth;
+
+  private HelpText() {
+  }
+
+  /**
+   * @param maxWidth the most pixels an image may take across
+   * @return the help page, parsed the first time it is asked for at this
+   *     width
+   */
+  static synchronized Spanned get(Context context, int maxWidth) {
+    if (text == null || textWidth != maxWidth) {
+      text = load(context.getApplicationContext(), maxWidth);
+      textWidth = maxWidth;
+    }
+    return text;
+  }
+
+  private static Spanned load(Context context, final int maxWidth) {
+    final AssetManager assets = context.getAssets();
+    final Resources resources = context.getResources();
+    String html = "";
+    try {
+      html = read(assets.open(HELP_FILE));
+    } catch (IOException e) {
+      Log.w(TAG, "Couldn't read help", e);
+    }
+    return Html.fromHtml(html, new Html.ImageGetter() {
+      public Drawable getDrawable(String source) {
+        return decode(assets, resources, source, maxWidth);
+      }
+    }, null);
+  }
+
+  private static String read(InputStream in) throws IOException {
+    Reader reader = new InputStreamReader(in, "UTF-8");
+    try {
+      StringBuilder html = new StringBuilder();
+      char [] buf = new char[2048];
+      int n;
+      while ((n = reader.read(buf)) > 0) {
+        html.append(buf, 0, n);
+      }
+      return html.toString();
+    } finally {
+      reader.close();
+    }
+  }
+
+  /**
+   * Decodes an image from the assets, subsampled to about the size it is
+   * shown at, which is its size in density independent pixels up to
+   * maxWidth.
+   */
+  private static Drawable decode(AssetManager assets, Resources resources,
+      String source, int maxWidth) {
+    try {
+      BitmapFactory.Options options = new BitmapFactory.Options();
+      options.inJustDecodeBounds = true;
+      InputStream in = assets.open(source);
+      try {
+        BitmapFactory.decodeStream(in, null, options);
+      } finally {
+        in.close();
+      }
+      if (options.outWidth <= 0 || options.outHeight <= 0) {
+        return null;
+      }
+      float density = resources.getDisplayMetrics().density;
+      int width = Math.min(maxWidth, (int) (options.outWidth * density));
+      int height = options.outHeight * width / options.outWidth;
+      options.inJustDecodeBounds = false;
+      options.inSampleSize = 1;
+      while (options.outWidth / (options.inSampleSize * 2) >= width) {
+        options.inSampleSize *= 2;
+      }
+      in = assets.open(source);
+      Bitmap bitmap;
+      try {
+        bitmap = BitmapFactory.decodeStream(in, null, options);
+      } finally {
+        in.close();
+      }
+      if (bitmap == null) {
+        return null;
+      }
+      Drawable drawable = new BitmapDrawable(resources, bitmap);
+      drawable.setBounds(0, 0, width, height);
+      return drawable;
+    } catch (IOException e) {
+      Log.w(TAG, "Couldn't read help image " + source, e);
+      return null;
+    }
+  }
+}
@@ -0,0 +1,349 @@
+/*
+ * Copyright (C) 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package org.odk.rangefinder;
+
+import android.app.AlertDialog;
+import android.app.ListActivity;
+import android.content.DialogInterface;
+import android.os.Bundle;
+import android.view.Menu;
+import android.view.MenuItem;
+import android.view.View;
+import android.view.ViewGroup;
+import android.view.ViewGroup.LayoutParams;
+import android.widget.BaseAdapter;
+import android.widget.LinearLayout;
+import android.widget.ListView;
+import android.widget.TextView;
+
+import java.text.DateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Lists the measurements in the history, newest first, filtered by time and
+ * calibration profile.  Pages are read in the background as the list nears
+ * the end of what has been read.  Only the pages within WINDOW of the one
+ * shown are held; the others are dropped, keeping just the row they start
+ * after, and read again if scrolled back to.  So opening and scrolling take
+ * the same time and memory however long the history is, and every row can
+ * still be reached.
+ */
+public class HistoryBrowser extends ListActivity {
+
+  private static final int PAGE_SIZE = 100;
+  private static final int WINDOW = 5;  // Pages held either side.
+  private static final long DAY_MS = 24 * 60 * 60 * 1000L;
+  private static final int TIME_RANGE = 0;
+  private static final int PROFILE = 1;
+
+  // Time range choices, in the order of the dialog's items.
+  private static final long [] RANGES_MS = {0, DAY_MS, 7 * DAY_MS,
+      30 * DAY_MS};
+  private static final int [] RANGE_LABELS = {R.string.history_all_time,
+      R.string.history_last_day, R.string.history_last_week,
+      R.string.history_last_month};
+
+  private MeasurementHistory history;
+  private TextView summary;
+  private final PageAdapter adapter = new PageAdapter();
+  private final LabelFormatter formatter = new LabelFormatter();
+  private final StringBuilder line = new StringBuilder();
+  private final char [] chars = new char[32];
+  private DateFormat dateFormat;
+  private String meterAbbr;
+  private String feetAbbr;
+  private String infinity;
+  private String unitsDegrees;
+
+  // Current filter, a profile of null means all of them.
+  private int range = 0;
+  private String profile = null;
+  private long from;
+  private long to;
+
+  // Pages read so far for the current filter; each is full except the last,
+  // and those dropped from the window are null.  The timestamp and id of
+  // each page's last row are kept, pairwise, to read the next page from.
+  private final List<MeasurementHistory.Page> pages =
+      new ArrayList<MeasurementHistory.Page>();
+  private long [] lastRows = new long[2 * 16];
+  private int count = 0;
+  private int shownPage = 0;
+  private boolean loading = false;
+  private boolean hasMore = true;
+  private int generation = 0;  // Bumped on each filter change.
+
+  @Override
+  public void onCreate(Bundle savedInstanceState) {
+    super.onCreate(savedInstanceState);
+    history = RangeFinder.getHistory(getApplicationContext());
+    dateFormat = DateFormat.getDateTimeInstance(DateFormat.SHORT,
+        DateFormat.SHORT);
+    meterAbbr = getString(R.string.meter_abbr);
+    feetAbbr = getString(R.string.feet_abbr);
+    infinity = getString(R.string.infinity);
+    unitsDegrees = getString(R.string.units_degrees);
+
+    LinearLayout layout = new LinearLayout(this);
+    layout.setOrientation(LinearLayout.VERTICAL);
+    summary = new TextView(this);
+    layout.addView(summary, new LayoutParams(LayoutParams.FILL_PARENT,
+        LayoutParams.WRAP_CONTENT));
+    ListView list = new ListView(this);
+    list.setId(android.R.id.list);
+    layout.addView(list, new LayoutParams(LayoutParams.FILL_PARENT,
+        LayoutParams.FILL_PARENT));
+    setContentView(layout);
+    setListAdapter(adapter);
+    reload();
+  }
+
+  @Override
+  public boolean onCreateOptionsMenu(Menu menu) {
+    menu.add(Menu.NONE, TIME_RANGE, Menu.NONE, R.string.history_time_range);
+    menu.add(Menu.NONE, PROFILE, Menu.NONE, R.string.history_profile);
+    return super.onCreateOptionsMenu(menu);
+  }
+
+  @Override
+  public boolean onOptionsItemSelected(MenuItem item) {
+    switch (item.getItemId()) {
+      case TIME_RANGE:
+        chooseTimeRange();
+        return true;
+
+      case PROFILE:
+        chooseProfile();
+        return true;
+    }
+    return super.onOptionsItemSelected(item);
+  }
+
+  private void chooseTimeRange() {
+    String [] labels = new String[RANGE_LABELS.length];
+    for (int i = 0; i < labels.length; i++) {
+      labels[i] = getString(RANGE_LABELS[i]);
+    }
+    new AlertDialog.Builder(this).setTitle(R.string.history_time_range)
+        .setSingleChoiceItems(labels, range,
+            new DialogInterface.OnClickListener() {
+              @Override
+              public void onClick(DialogInterface dialog, int which) {
+                range = which;
+                reload();
+                dialog.dismiss();
+              }
+            }).show();
+  }
+
+  private void chooseProfile() {
+    RangeFinder.background.execute(new Runnable() {
+      @Override
+      public void run() {
+        final List<String> profiles = history.getProfiles();
+        runOnUiThread(new Runnable() {
+          @Override
+          public void run() {
+            showProfiles(profiles);
+          }
+        });
+      }
+    });
+  }
+
+  private void showProfiles(List<String> profiles) {
+    final String [] names = new String[profiles.size() + 1];
+    names[0] = getString(R.string.history_all_profiles);
+    int checked = 0;
+    for (int i = 0; i < profiles.size(); i++) {
+      names[i + 1] = profiles.get(i);
+      if (names[i + 1].equals(profile)) {
+        checked = i + 1;
+      }
+    }
+    new AlertDialog.Builder(this).setTitle(R.string.history_profile)
+        .setSingleChoiceItems(names, checked,
+            new DialogInterface.OnClickListener() {
+              @Override
+              public void onClick(DialogInterface dialog, int which) {
+                profile = which == 0 ? null : names[which];
+                reload();
+                dialog.dismiss();
+              }
+            }).show();
+  }
+
+  /** Drops what has been read and reads the first page for the filter. */
+  private void reload() {
+    generation++;
+    to = System.currentTimeMillis() + 1;
+    from = RANGES_MS[range] == 0 ? 0 : to - RANGES_MS[range];
+    pages.clear();
+    count = 0;
+    shownPage = 0;
+    loading = false;
+    hasMore = true;
+    updateSummary();
+    adapter.notifyDataSetChanged();
+    loadNextPage();
+  }
+
+  private void updateSummary() {
+    line.setLength(0);
+    line.append(getString(RANGE_LABELS[range])).append(", ")
+        .append(profile != null ? profile
+            : getString(R.string.history_all_profiles));
+    if (count == 0 && !hasMore) {
+      line.append('\n').append(getString(R.string.history_empty));
+    }
+    summary.setText(line.toString());
+  }
+
+  private void loadNextPage() {
+    if (hasMore) {
+      loadPage(pages.size());
+    }
+  }
+
+  /**
+   * Reads a page, either the next one or one dropped from the window, unless
+   * a page is being read already; the list asks again once that one is in.
+   */
+  private void loadPage(final int index) {
+    if (loading) {
+      return;
+    }
+    loading = true;
+    final int forGeneration = generation;
+    final long forFrom = from;
+    final long forTo = to;
+    final String forProfile = profile;
+    final long afterTimestamp = index > 0 ? lastRows[2 * index - 2]
+        : Long.MAX_VALUE;
+    final long afterId = index > 0 ? lastRows[2 * index - 1]
+        : Long.MAX_VALUE;
+    RangeFinder.background.execute(new Runnable() {
+      @Override
+      public void run() {
+        final MeasurementHistory.Page page = history.query(forFrom, forTo,
+            forProfile, afterTimestamp, afterId, PAGE_SIZE);
+        runOnUiThread(new Runnable() {
+          @Override
+          public void run() {
+            if (forGeneration != generation) {
+              return;  // The filter changed meanwhile.
+            }
+            loading = false;
+            if (index < pages.size()) {
+              pages.set(index, page);
+            } else {
+              addPage(page);
+            }
+            dropFarPages();
+            updateSummary();
+            adapter.notifyDataSetChanged();
+          }
+        });
+      }
+    });
+  }
+
+  private void addPage(MeasurementHistory.Page page) {
+    hasMore = page.count == PAGE_SIZE;
+    if (page.count == 0) {
+      return;
+    }
+    int index = pages.size();
+    if (2 * index + 2 > lastRows.length) {
+      long [] grown = new long[2 * lastRows.length];
+      System.arraycopy(lastRows, 0, grown, 0, lastRows.length);
+      lastRows = grown;
+    }
+    lastRows[2 * index] = page.timestamps[page.count - 1];
+    lastRows[2 * index + 1] = page.ids[page.count - 1];
+    pages.add(page);
+    count += page.count;
+  }
+
+  private void dropFarPages() {
+    for (int i = 0; i < pages.size(); i++) {
+      if (Math.abs(i - shownPage) > WINDOW) {
+        pages.set(i, null);
+      }
+    }
+  }
+
+  /** Shows the pages read so far, and asks for more near the end. */
+  private class PageAdapter extends BaseAdapter {
+
+    public int getCount() {
+      return count;
+    }
+
+    public Object getItem(int position) {
+      return null;
+    }
+
+    // Dropped pages have no ids at hand, so they aren't stable.
+    public long getItemId(int position) {
+      return position;
+    }
+
+    public View getView(int position, View convertView, ViewGroup parent) {
+      if (position >= count - PAGE_SIZE / 4) {
+        loadNextPage();
+      }
+      TextView view = convertView != null ? (TextView) convertView
+          : new TextView(HistoryBrowser.this);
+      shownPage = position / PAGE_SIZE;
+      MeasurementHistory.Page page = pages.get(shownPage);
+      int i = position % PAGE_SIZE;
+      if (page == null) {
+        loadPage(shownPage);
+        view.setText("");  // Blank until the page is read again.
+        return view;
+      }
+      line.setLength(0);
+      line.append(dateFormat.format(new Date(page.timestamps[i])))
+          .append("  ");
+      float accuracy = page.accuracies[i];
+      if (accuracy == RangeMath.INFINITE) {
+        line.append(infinity);
+      } else {
+        // Stored in meters, shown in the units they were measured in.
+        float scale = page.imperial[i] ? 1 / RangeMath.METERS_PER_FOOT : 1;
+        int decimals = LabelFormatter.decimalsForAccuracy(accuracy);
+        line.append(chars, 0, formatter.appendDistance(
+            page.distances[i] * scale, decimals, chars, 0));
+        line.append(page.imperial[i] ? feetAbbr : meterAbbr).append(" \u00B1")
+            .append(chars, 0, formatter.appendDistance(accuracy * scale,
+                decimals, chars, 0));
+      }
+      if (page.inclinations[i] != RangeCard.NO_MEASUREMENT) {
+        line.append("  ").append(page.inclinations[i]).append(unitsDegrees);
+      }
+      if (page.profiles[i] != null) {
+        line.append("  ").append(page.profiles[i]);
+      }
+      view.setText(line.toString());
+      return view;
+    }
+  }
+}
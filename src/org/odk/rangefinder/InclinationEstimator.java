@@ -0,0 +1,99 @@
+/*
+ * Copyright (C) 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package org.odk.rangefinder;
+
+/**
+ * Turns raw sensor readings into the inclination shown on the card, in whole
+ * degrees, using whichever filter suits the sensor they come from.  Has no
+ * Android dependencies, so recorded readings can be replayed on a plain JVM.
+ * Not thread safe, it is meant to be fed from a single sensor thread.
+ */
+public final class InclinationEstimator {
+
+  // Same values as Sensor's, gravity and rotation vector are API level 9.
+  public static final int TYPE_ACCELEROMETER = 1;
+  public static final int TYPE_GYROSCOPE = 4;
+  public static final int TYPE_GRAVITY = 9;
+  public static final int TYPE_ROTATION_VECTOR = 11;
+
+  private final InclinationFilter filter;
+  private final ComplementaryFilter complementaryFilter;
+  private boolean fuseGyroscope = false;
+  private int inclination = 0;
+
+  /**
+   * @param window accelerometer samples to average when there's no gyroscope
+   * @param timeConstant seconds the gyroscope is trusted over the
+   *     accelerometer when there is
+   */
+  public InclinationEstimator(int window, float timeConstant) {
+    filter = new InclinationFilter(window);
+    complementaryFilter = new ComplementaryFilter(timeConstant);
+  }
+
+  /**
+   * Sets whether accelerometer readings are combined with gyroscope ones.
+   */
+  public void setFuseGyroscope(boolean fuseGyroscope) {
+    this.fuseGyroscope = fuseGyroscope;
+  }
+
+  /**
+   * Adds a reading.
+   * @param type one of the TYPE constants
+   * @param timestamp in nanoseconds
+   * @return true if the inclination in whole degrees changed
+   */
+  public boolean add(int type, float x, float y, float z, long timestamp) {
+    double radians;
+    switch (type) {
+      case TYPE_ROTATION_VECTOR:
+        radians = InclinationFilter.fromRotationVector(x, y, z);
+        break;
+      case TYPE_GRAVITY:
+        radians = InclinationFilter.inclination(x, y, z);
+        break;
+      case TYPE_GYROSCOPE:
+        complementaryFilter.addGyroscope(x, y, z, timestamp);
+        if (!complementaryFilter.hasEstimate()) {
+          return false;
+        }
+        radians = complementaryFilter.inclination();
+        break;
+      default:
+        if (fuseGyroscope) {
+          complementaryFilter.addAccelerometer(x, y, z, timestamp);
+          radians = complementaryFilter.inclination();
+        } else {
+          radians = filter.add(x, y, z);
+        }
+        break;
+    }
+    int degrees = InclinationFilter.toDegrees(radians);
+    if (degrees == inclination) {
+      return false;
+    }
+    inclination = degrees;
+    return true;
+  }
+
+  /** @return the inclination in degrees, straight up is 90 */
+  public int getInclination() {
+    return inclination;
+  }
+}
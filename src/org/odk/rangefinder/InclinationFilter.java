@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package org.odk.rangefinder;
+
+/**
+ * Low-pass filters gravity readings with a moving average over the last few
+ * samples, and turns them into an inclination.  The samples are kept in a
+ * primitive ring buffer so adding one never allocates.  Not thread safe, it is
+ * meant to be fed from a single sensor thread.
+ */
+public final class InclinationFilter {
+
+  private final float [] xs;
+  private final float [] ys;
+  private final float [] zs;
+  private int next = 0;
+  private int count = 0;
+
+  /**
+   * @param window number of samples to average over
+   */
+  public InclinationFilter(int window) {
+    xs = new float[window];
+    ys = new float[window];
+    zs = new float[window];
+  }
+
+  public void reset() {
+    next = 0;
+    count = 0;
+  }
+
+  /**
+   * Adds a gravity (or accelerometer) reading in device coordinates.
+   * @return the filtered inclination, in radians
+   */
+  public double add(float x, float y, float z) {
+    xs[next] = x;
+    ys[next] = y;
+    zs[next] = z;
+    next = (next + 1) % xs.length;
+    if (count < xs.length) {
+      count++;
+    }
+    float sx = 0;
+    float sy = 0;
+    float sz = 0;
+    for (int i = 0; i < count; i++) {
+      sx += xs[i];
+      sy += ys[i];
+      sz += zs[i];
+    }
+    // No need to divide by count, the inclination only depends on direction.
+    return inclination(sx, sy, sz);
+  }
+
+  /**
+   * Measures the angle between z (out of the screen) and the x-y plane.
+   * @return inclination in radians, straight up is pi/2 and down -pi/2
+   */
+  public static double inclination(float x, float y, float z) {
+    double magnitude = Math.sqrt(x * x + y * y + z * z);
+    // Invert this because want straight up to be 90, down -90.
+    return - Math.asin(z / magnitude);
+  }
+
+  /**
+   * Works out the inclination from a rotation vector sensor reading, the
+   * x, y and z parts of a unit quaternion.
+   * @return inclination in radians, as from {@link #inclination}
+   */
+  public static double fromRotationVector(float x, float y, float z) {
+    // World up in device coordinates is the bottom row of the rotation
+    // matrix, and its z component is 1 - 2(x^2 + y^2).
+    double upZ = 1 - 2 * (x * x + y * y);
+    return - Math.asin(Math.max(-1, Math.min(1, upZ)));
+  }
+
+  /** @return the inclination in whole degrees, as shown on the card */
+  public static int toDegrees(double radians) {
+    return (int) Math.toDegrees(radians);
+  }
+}
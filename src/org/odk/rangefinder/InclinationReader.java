@@ -0,0 +1,138 @@
+/*
+ * Copyright (C) 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package org.odk.rangefinder;
+
+/**
+ * Reads the inclination from a {@link SensorSource}, on whichever thread
+ * that delivers readings.  The card is told of the first reading after each
+ * resume, then only when the displayed whole degree changes, and when
+ * shutting down stops the inclination being shown.  Has no Android
+ * dependencies, so recorded readings can be replayed through it on a plain
+ * JVM.
+ * <p>
+ * Only listens between {@link #resume} and {@link #pause}.  It drops its
+ * callback on {@link #shutdown}, so neither the sensor service nor the
+ * source's thread can keep the card or activity alive.
+ */
+public final class InclinationReader implements SensorSource.Listener {
+
+  /**
+   * Told on the sensor thread when the whole degree value changes, and on
+   * the caller's thread when {@link #shutdown} stops it being supported.
+   */
+  public interface Callback {
+    /**
+     * @param timestamp when the reading was taken, or 0 if no reading goes
+     *     with the change
+     */
+    void onInclinationChanged(long timestamp);
+  }
+
+  private static final int FILTER_WINDOW = 4;  // samples
+  private static final float GYRO_TIME_CONSTANT = 0.5f;  // seconds
+  private static final int GYROSCOPE =
+      1 << InclinationEstimator.TYPE_GYROSCOPE;
+
+  private final SensorSource source;
+  private volatile Callback callback;
+  private volatile boolean supported = false;
+  // Cleared on resume, so the first reading is shown even if it is 0.
+  private volatile boolean reported = false;
+  private boolean resumed = false;
+  private boolean shutdown = false;
+  // Only fed on the sensor thread.
+  private final InclinationEstimator estimator =
+      new InclinationEstimator(FILTER_WINDOW, GYRO_TIME_CONSTANT);
+  // Written on the sensor thread, read on the UI thread.
+  private volatile int inclination;
+  // TODO: possibly provide some calibration.
+
+  public InclinationReader(SensorSource source, Callback callback) {
+    this.source = source;
+    this.callback = callback;
+  }
+
+  /**
+   * Starts listening.  Called once the first frame is drawn, since it isn't
+   * needed to show the card, and then whenever the activity resumes.
+   */
+  public synchronized void resume() {
+    if (resumed || shutdown) {
+      return;
+    }
+    resumed = true;
+    int types = source.getTypes();
+    if (types == 0) {
+      return;
+    }
+    estimator.setFuseGyroscope((types & GYROSCOPE) != 0);
+    reported = false;
+    types = source.start(this);
+    supported = types != 0;
+    estimator.setFuseGyroscope((types & GYROSCOPE) != 0);
+  }
+
+  /** Stops listening until {@link #resume}, e.g. when the app is paused. */
+  public synchronized void pause() {
+    if (!resumed) {
+      return;
+    }
+    resumed = false;
+    source.stop();
+  }
+
+  public boolean isSupported() {
+    return supported;
+  }
+
+  public int getInclination() {
+    return inclination;
+  }
+
+  /**
+   * Stops listening, releases the source's thread and lets go of the
+   * callback, telling it first if the inclination was shown.  The reader
+   * can't be resumed afterwards.
+   */
+  public void shutdown() {
+    Callback c;
+    synchronized (this) {
+      pause();
+      shutdown = true;
+      c = supported ? callback : null;
+      supported = false;
+      callback = null;
+      source.release();
+    }
+    // Outside the lock, as the callback may take the card's.
+    if (c != null) {
+      c.onInclinationChanged(0);
+    }
+  }
+
+  public void onReading(int type, float x, float y, float z, long timestamp) {
+    if (estimator.add(type, x, y, z, timestamp) || !reported) {
+      reported = true;
+      inclination = estimator.getInclination();
+      Callback c = callback;
+      if (c != null) {
+        c.onInclinationChanged(timestamp);
+      }
+    }
+  }
+}
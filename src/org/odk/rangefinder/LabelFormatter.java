@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package org.odk.rangefinder;
+
+import java.text.DecimalFormatSymbols;
+
+/**
+ * Writes numbers and strings into caller supplied char buffers so labels can
+ * be rebuilt every frame without creating garbage.  Output matches the
+ * "0.000", "0.00", "0.0" and integer DecimalFormats used for distances.
+ * Holds no mutable state, so one instance can be shared between threads.
+ */
+public final class LabelFormatter {
+
+  private static final long [] POWERS_OF_TEN = {1, 10, 100, 1000};
+
+  private final char decimalSeparator;
+  private final char groupingSeparator;
+
+  public LabelFormatter() {
+    DecimalFormatSymbols symbols = new DecimalFormatSymbols();
+    decimalSeparator = symbols.getDecimalSeparator();
+    groupingSeparator = symbols.getGroupingSeparator();
+  }
+
+  /**
+   * Picks how many decimals to show for a distance with the given accuracy.
+   * Could be smarter about formatting based on imperial/metric, but doesn't
+   * really matter.
+   */
+  public static int decimalsForAccuracy(float accuracy) {
+    if (accuracy > 1) {
+      return 0;
+    } else if (accuracy > 0.1) {
+      return 1;
+    } else if (accuracy > 0.01) {
+      return 2;
+    }
+    return 3;
+  }
+
+  /**
+   * Writes value with a fixed number of decimals (0 to 3) into buf.
+   * @param grouping true to separate thousands, like the integer format does
+   * @return the offset just past the last written char
+   */
+  public int appendFixed(float value, int decimals, boolean grouping,
+      char [] buf, int off) {
+    long scale = POWERS_OF_TEN[decimals];
+    // DecimalFormat rounds half to even, and so does rint.
+    long scaled = (long) Math.rint(Math.abs((double) value) * scale);
+    if (value < 0 && scaled != 0) {
+      buf[off++] = '-';
+    }
+    off = appendLong(scaled / scale, grouping, buf, off);
+    if (decimals > 0) {
+      buf[off] = decimalSeparator;
+      long frac = scaled % scale;
+      for (int i = decimals; i > 0; i--) {
+        buf[off + i] = (char) ('0' + frac % 10);
+        frac /= 10;
+      }
+      off += decimals + 1;
+    }
+    return off;
+  }
+
+  /**
+   * Writes a distance as the range labels show it: with the given decimals,
+   * separating thousands only in the integer format, as the formats do.
+   * @return the offset just past the last written char
+   */
+  public int appendDistance(float value, int decimals, char [] buf,
+      int off) {
+    return appendFixed(value, decimals, decimals == 0, buf, off);
+  }
+
+  /**
+   * Writes a whole number into buf.
+   * @return the offset just past the last written char
+   */
+  public int appendInt(int value, char [] buf, int off) {
+    if (value < 0) {
+      buf[off++] = '-';
+    }
+    return appendLong(Math.abs((long) value), false, buf, off);
+  }
+
+  /**
+   * Copies s into buf.
+   * @return the offset just past the last written char
+   */
+  public int appendString(String s, char [] buf, int off) {
+    int len = s.length();
+    s.getChars(0, len, buf, off);
+    return off + len;
+  }
+
+  private int appendLong(long value, boolean grouping, char [] buf, int off) {
+    int digits = 1;
+    for (long v = value / 10; v > 0; v /= 10) {
+      digits++;
+    }
+    int len = digits;
+    if (grouping) {
+      len += (digits - 1) / 3;
+    }
+    // Fill in from the least significant digit backwards.
+    int pos = off + len - 1;
+    for (int i = 0; i < digits; i++) {
+      if (grouping && i > 0 && i % 3 == 0) {
+        buf[pos--] = groupingSeparator;
+      }
+      buf[pos--] = (char) ('0' + value % 10);
+      value /= 10;
+    }
+    return off + len;
+  }
+}
@@ -0,0 +1,204 @@
+/*
+ * Copyright (C) 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package org.odk.rangefinder;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * SQLite store of the measurements returned to callers, for reviewing them
+ * on the device.  Unlike the journal it is indexed by time and calibration
+ * profile, and is read a page at a time: each page starts after the last row
+ * of the one before (keyset paging), so reading any page is an index seek
+ * however long the history gets.  Blocks on disk I/O, so use it off the UI
+ * thread.
+ */
+public class MeasurementHistory extends SQLiteOpenHelper {
+
+  private static final String DATABASE = "history.db";
+  private static final int VERSION = 1;
+  private static final String TABLE = "measurements";
+
+  private static final String INSERT = "INSERT INTO " + TABLE
+      + " (timestamp, profile, imperial, distance, accuracy, inclination,"
+      + " eye_separation, arm_length) VALUES (?, ?, ?, ?, ?, ?, ?, ?)";
+  // Newest first, ties broken by insertion order so no row is skipped or
+  // repeated across pages.  The timestamp indexes hold the row id, so the
+  // ordering comes straight from whichever index the filter uses.
+  private static final String PAGE_COLUMNS = "SELECT _id, timestamp, profile,"
+      + " imperial, distance, accuracy, inclination FROM " + TABLE
+      + " WHERE timestamp >= ? AND timestamp < ?"
+      + " AND (timestamp < ? OR (timestamp = ? AND _id < ?))";
+  private static final String PAGE_ORDER =
+      " ORDER BY timestamp DESC, _id DESC LIMIT ";
+
+  private SQLiteStatement insert;
+
+  /** A page of measurements, newest first. */
+  public static final class Page {
+    public final int count;
+    public final long [] ids;
+    public final long [] timestamps;
+    public final String [] profiles;  // null when none was active
+    public final boolean [] imperial;
+    public final float [] distances;  // meters
+    public final float [] accuracies;  // meters, or RangeMath.INFINITE
+    public final int [] inclinations;  // or RangeCard.NO_MEASUREMENT
+
+    Page(int capacity, Cursor c) {
+      ids = new long[capacity];
+      timestamps = new long[capacity];
+      profiles = new String[capacity];
+      imperial = new boolean[capacity];
+      distances = new float[capacity];
+      accuracies = new float[capacity];
+      inclinations = new int[capacity];
+      int n = 0;
+      while (n < capacity && c.moveToNext()) {
+        ids[n] = c.getLong(0);
+        timestamps[n] = c.getLong(1);
+        profiles[n] = c.isNull(2) ? null : c.getString(2);
+        imperial[n] = c.getInt(3) != 0;
+        distances[n] = c.getFloat(4);
+        accuracies[n] = c.getFloat(5);
+        inclinations[n] = c.isNull(6) ? RangeCard.NO_MEASUREMENT
+            : c.getInt(6);
+        n++;
+      }
+      count = n;
+    }
+  }
+
+  public MeasurementHistory(Context context) {
+    super(context, DATABASE, null, VERSION);
+  }
+
+  @Override
+  public void onCreate(SQLiteDatabase db) {
+    db.execSQL("CREATE TABLE " + TABLE + " ("
+        + "_id INTEGER PRIMARY KEY AUTOINCREMENT, "
+        + "timestamp INTEGER NOT NULL, "
+        + "profile TEXT, "
+        + "imperial INTEGER NOT NULL, "
+        + "distance REAL NOT NULL, "
+        + "accuracy REAL NOT NULL, "
+        + "inclination INTEGER, "
+        + "eye_separation REAL NOT NULL, "
+        + "arm_length REAL NOT NULL)");
+    db.execSQL("CREATE INDEX " + TABLE + "_timestamp ON " + TABLE
+        + " (timestamp)");
+    db.execSQL("CREATE INDEX " + TABLE + "_profile ON " + TABLE
+        + " (profile, timestamp)");
+  }
+
+  @Override
+  public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+    // Only one version so far.
+  }
+
+  /**
+   * Adds measurements taken with one calibration, in one transaction.
+   * @param profile the active calibration profile, may be null
+   * @param distances meters, whatever the units shown
+   * @param accuracies meters, or RangeMath.INFINITE
+   * @param inclinations degrees, or RangeCard.NO_MEASUREMENT
+   * @param eyesep eye separation, meters
+   * @param armlength arm length, meters
+   */
+  public synchronized void add(String profile, boolean imperial,
+      long [] timestamps, float [] distances, float [] accuracies,
+      int [] inclinations, float eyesep, float armlength) {
+    SQLiteDatabase db = getWritableDatabase();
+    if (insert == null) {
+      insert = db.compileStatement(INSERT);
+    }
+    db.beginTransaction();
+    try {
+      for (int i = 0; i < timestamps.length; i++) {
+        insert.clearBindings();
+        insert.bindLong(1, timestamps[i]);
+        if (profile != null) {
+          insert.bindString(2, profile);
+        }
+        insert.bindLong(3, imperial ? 1 : 0);
+        insert.bindDouble(4, distances[i]);
+        insert.bindDouble(5, accuracies[i]);
+        if (inclinations[i] != RangeCard.NO_MEASUREMENT) {
+          insert.bindLong(6, inclinations[i]);
+        }
+        insert.bindDouble(7, eyesep);
+        insert.bindDouble(8, armlength);
+        insert.executeInsert();
+      }
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
+    }
+  }
+
+  /**
+   * Reads the page of measurements that comes after the given row.
+   * @param from earliest timestamp to include
+   * @param to timestamp to stop before
+   * @param profile only this profile's measurements, or all if null
+   * @param afterTimestamp timestamp of the last row of the previous page, or
+   *     Long.MAX_VALUE for the first page
+   * @param afterId id of that row, or Long.MAX_VALUE
+   */
+  public Page query(long from, long to, String profile, long afterTimestamp,
+      long afterId, int limit) {
+    String sql = PAGE_COLUMNS + (profile != null ? " AND profile = ?" : "")
+        + PAGE_ORDER + limit;
+    String [] args = new String[profile != null ? 6 : 5];
+    args[0] = Long.toString(from);
+    args[1] = Long.toString(to);
+    args[2] = Long.toString(afterTimestamp);
+    args[3] = args[2];
+    args[4] = Long.toString(afterId);
+    if (profile != null) {
+      args[5] = profile;
+    }
+    Cursor c = getReadableDatabase().rawQuery(sql, args);
+    try {
+      return new Page(limit, c);
+    } finally {
+      c.close();
+    }
+  }
+
+  /** @return the profiles that have measurements, in order */
+  public List<String> getProfiles() {
+    Cursor c = getReadableDatabase().rawQuery("SELECT DISTINCT profile FROM "
+        + TABLE + " WHERE profile IS NOT NULL ORDER BY profile", null);
+    try {
+      List<String> profiles = new ArrayList<String>();
+      while (c.moveToNext()) {
+        profiles.add(c.getString(0));
+      }
+      return profiles;
+    } finally {
+      c.close();
+    }
+  }
+}
@@ -0,0 +1,216 @@
+/*
+ * Copyright (C) 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package org.odk.rangefinder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.Executor;
+
+/**
+ * Append-only log of measurements, kept in a memory-mapped file of fixed
+ * width binary records.  Appending is a handful of memory writes with no
+ * system call or disk sync, so it is cheap enough for the UI thread; the
+ * kernel writes the pages back in its own time, and they survive the process
+ * being killed.  The mapping is grown on a background executor before it
+ * fills up.
+ * <p>
+ * The file starts with a 16 byte header (magic, record size, record count),
+ * and each record holds a timestamp, kind and flags, the pixel offset,
+ * distance, accuracy, inclination and the calibration used.
+ */
+public class MeasurementJournal {
+
+  /** A measurement returned to the caller. */
+  public static final int KIND_COMMIT = 1;
+  /** The red line was moved. */
+  public static final int KIND_ADJUST = 2;
+  /** Set on the kind when the user had imperial units selected. */
+  public static final int FLAG_IMPERIAL = 0x100;
+  private static final int KIND_MASK = 0xff;
+  /** Inclination when there wasn't one, same as RangeCard.NO_MEASUREMENT. */
+  public static final int NO_INCLINATION = Integer.MIN_VALUE;
+
+  private static final int MAGIC = 0x52464a31;  // "RFJ1"
+  private static final int HEADER_SIZE = 16;
+  private static final int COUNT_OFFSET = 8;
+  public static final int RECORD_SIZE = 40;
+  private static final int GROW_RECORDS = 1024;
+  private static final int GROW_AHEAD_RECORDS = 128;
+
+  private final RandomAccessFile file;
+  private final FileChannel channel;
+  private final Executor growExecutor;
+  private MappedByteBuffer buffer;
+  private long count;
+  private boolean growing = false;
+
+  private final Runnable growTask = new Runnable() {
+    @Override
+    public void run() {
+      try {
+        grow();
+      } catch (IOException e) {
+        // Append will try again inline when it runs out of room.
+      }
+    }
+  };
+
+  /**
+   * Opens, or creates, the journal in the given file.
+   * @param growExecutor runs the remapping when the journal fills up
+   */
+  public MeasurementJournal(File path, Executor growExecutor)
+      throws IOException {
+    this.growExecutor = growExecutor;
+    file = new RandomAccessFile(path, "rw");
+    channel = file.getChannel();
+    long size = Math.max(channel.size(),
+        HEADER_SIZE + (long) GROW_RECORDS * RECORD_SIZE);
+    buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+    if (buffer.getInt(0) != MAGIC) {
+      buffer.putInt(0, MAGIC);
+      buffer.putInt(4, RECORD_SIZE);
+      buffer.putLong(COUNT_OFFSET, 0);
+    } else if (buffer.getInt(4) != RECORD_SIZE) {
+      throw new IOException("Unsupported journal record size");
+    }
+    count = buffer.getLong(COUNT_OFFSET);
+  }
+
+  /**
+   * Appends a record.  Doesn't block on disk I/O unless the journal grew
+   * faster than the background executor could extend it.
+   * @param inclination degrees, or {@link #NO_INCLINATION}
+   */
+  public synchronized void append(long timestamp, int kind, int userPixel,
+      float distance, float accuracy, int inclination, float xdpi,
+      float eyesep, float armlength) {
+    long pos = HEADER_SIZE + count * RECORD_SIZE;
+    if (pos + RECORD_SIZE > buffer.capacity()) {
+      try {
+        grow();
+      } catch (IOException e) {
+        return;  // Out of space, auditing is best effort.
+      }
+    }
+    int p = (int) pos;
+    buffer.putLong(p, timestamp);
+    buffer.putInt(p + 8, kind);
+    buffer.putInt(p + 12, userPixel);
+    buffer.putFloat(p + 16, distance);
+    buffer.putFloat(p + 20, accuracy);
+    buffer.putInt(p + 24, inclination);
+    buffer.putFloat(p + 28, xdpi);
+    buffer.putFloat(p + 32, eyesep);
+    buffer.putFloat(p + 36, armlength);
+    // Only count the record once it is completely written.
+    count++;
+    buffer.putLong(COUNT_OFFSET, count);
+    if (!growing && buffer.capacity() - (p + RECORD_SIZE)
+        < GROW_AHEAD_RECORDS * RECORD_SIZE) {
+      growing = true;
+      growExecutor.execute(growTask);
+    }
+  }
+
+  public synchronized long getCount() {
+    return count;
+  }
+
+  private void grow() throws IOException {
+    long size;
+    synchronized (this) {
+      growing = false;
+      size = buffer.capacity() + (long) GROW_RECORDS * RECORD_SIZE;
+    }
+    // Mapping more extends the file, so don't hold up appends meanwhile.
+    MappedByteBuffer bigger =
+        channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+    synchronized (this) {
+      if (bigger.capacity() > buffer.capacity()) {
+        buffer = bigger;
+      }
+    }
+  }
+
+  /**
+   * Writes the pages back to disk.  Blocks, so call it off the UI thread,
+   * e.g. when the app goes to the background.
+   */
+  public void flush() {
+    MappedByteBuffer b;
+    synchronized (this) {
+      b = buffer;
+    }
+    b.force();
+  }
+
+  public void close() throws IOException {
+    flush();
+    file.close();
+  }
+
+  /**
+   * Streams the records of a journal file out as CSV, one record at a time.
+   */
+  public static void exportCsv(File path, Writer out) throws IOException {
+    RandomAccessFile in = new RandomAccessFile(path, "r");
+    try {
+      FileChannel channel = in.getChannel();
+      ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+      if (channel.read(header, 0) < HEADER_SIZE || header.getInt(0) != MAGIC
+          || header.getInt(4) != RECORD_SIZE) {
+        throw new IOException("Not a measurement journal");
+      }
+      long records = header.getLong(COUNT_OFFSET);
+      out.write("timestamp,kind,units,pixel,distance_m,accuracy_m,"
+          + "inclination,xdpi,eye_separation_m,arm_length_m\n");
+      ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE);
+      StringBuilder line = new StringBuilder();
+      for (long i = 0; i < records; i++) {
+        record.clear();
+        channel.read(record, HEADER_SIZE + i * RECORD_SIZE);
+        int kind = record.getInt(8);
+        int inclination = record.getInt(24);
+        line.setLength(0);
+        line.append(record.getLong(0)).append(',')
+            .append((kind & KIND_MASK) == KIND_COMMIT ? "commit" : "adjust")
+            .append(',')
+            .append((kind & FLAG_IMPERIAL) != 0 ? "feet" : "meters")
+            .append(',').append(record.getInt(12))
+            .append(',').append(record.getFloat(16))
+            .append(',').append(record.getFloat(20)).append(',');
+        if (inclination != NO_INCLINATION) {
+          line.append(inclination);
+        }
+        line.append(',').append(record.getFloat(28))
+            .append(',').append(record.getFloat(32))
+            .append(',').append(record.getFloat(36)).append('\n');
+        out.append(line);
+      }
+      out.flush();
+    } finally {
+      in.close();
+    }
+  }
+}
@@ -19,23 +19,25 @@ package org.odk.rangefinder;
 
 import android.content.Context;
 import android.content.SharedPreferences;
+import android.content.res.Configuration;
 import android.content.res.Resources;
+import android.graphics.Bitmap;
 import android.graphics.Canvas;
 import android.graphics.Color;
 import android.graphics.Paint;
 import android.graphics.Path;
+import android.graphics.Rect;
 import android.graphics.RectF;
 import android.graphics.Paint.Align;
-import android.hardware.Sensor;
-import android.hardware.SensorEvent;
-import android.hardware.SensorEventListener;
-import android.hardware.SensorManager;
+import android.os.Bundle;
+import android.os.SystemClock;
 import android.view.KeyEvent;
 import android.view.MotionEvent;
 import android.view.View;
 
-import java.text.DecimalFormat;
-import java.text.NumberFormat;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
 
 /**
  * Generates and displays a range card to allow you to estimate distance to an
@@ -47,64 +49,249 @@ import java.text.NumberFormat;
  */
 public class RangeCard extends View {
    
-  public static final int NO_MEASUREMENT = Integer.MIN_VALUE;
+  public static final int NO_MEASUREMENT = CardController.NO_MEASUREMENT;
   
   private RangeFinder activity;
   private Resources resource;
-  private InclinationReader inclinationReader;
-  private float armlength = 0.60f;  // meters
-  private float eyesep = 0.07f;  // meters
-  private float xdpi = 0;
-  private float xdpm = 0;  // dots per meter, in x dimension...
-  private boolean imperial = false;  // Display feet or meters.
+  private final InclinationReader inclinationReader;
+  private final float xdpi;
   
-  // Used to display estimate distance to user
-  private int userPixel = 40;
-  private float userDist = 0;
-  private String userDistStr = "";
-  private float userDistAccuracy = 0;
-  private int inclinationAtLastAdjustment = NO_MEASUREMENT;
+  // The red line, the distance it is at and the tables it is solved from.
+  private final CardController controller;
+  private volatile MeasurementJournal journal;
+  // Draws the card on its own thread instead of onDraw, if set.
+  private volatile RangeCardSurface surface;
+  private boolean journalAdjustments = false;
 
-  private boolean inited = false;
+  // Performance counters, only recorded while they are shown.
+  private static final long STATS_REFRESH_MS = 500;
+  private final FrameStats stats = new FrameStats();
+  private volatile boolean statsShown = false;
+  // Uptime of the first input not drawn, set by input without the lock.
+  private volatile long statsInputTime = 0;
+  private long statsSensorTime = 0;  // nanoTime the sensor reading came in
+  private long statsSensorAge = 0;  // nanoseconds it was old by then
+  private final Rect statsBounds = new Rect();
+  private final Paint statsPaint = new Paint();
+  private final Paint statsBackgroundPaint = new Paint();
+  private final char [] statsChars = new char[64];
+
+  private volatile boolean inited = false;
+  private volatile boolean drawnOnce = false;
+  private boolean resumed = false;  // Only touched on the UI thread.
+  private boolean cursorPlaced = false;
+  // Set when the line was put back from saved state, until it is checked
+  // against the screen it was saved on.
+  private boolean restored = false;
+  private int restoredGeometry = 0;
+
+  // Keys for the state saved across the process being killed.
+  private static final String STATE_PIXEL = "rangecard.pixel";
+  private static final String STATE_INCLINATION = "rangecard.inclination";
+  private static final String STATE_GEOMETRY = "rangecard.geometry";
+
+  // Everything except the red line and inclination only changes with the
+  // settings or view size, so it is rendered once into this layer.
+  private Bitmap staticLayer;
+  private boolean staticLayerDirty = true;
+  private Calibration staticLayerCalibration;  // What it was built for.
+
+  // What the red line and its label may still cover on the screen, and what
+  // the inclination text can cover, so updates only redraw those strips.
+  private final Rect cursorBounds = new Rect();
+  private final Rect inclinationBounds = new Rect();
+  private final Rect lineBounds = new Rect();
+  private final Rect clipRect = new Rect();
+  // Where cursorBounds spans across, for input to read without the lock:
+  // its left in the high half and right in the low half.  It always spans
+  // the same rows.
+  private static final long NO_SPAN = 0;
+  private volatile long cursorSpan = NO_SPAN;
+  // Only used by input, on the UI thread.
+  private final Rect dirtyRect = new Rect();
+  private final Paint inputCursorPaint = new Paint();
+
+  // Tick labels are measured with their own paint, since solving can run
+  // off the UI thread, and each width is only measured once.
+  private final Paint measurePaint = new Paint();
+  private final Map<String, Float> labelWidths = new HashMap<String, Float>();
+  private final TickLayout.TextMeasurer labelMeasurer =
+      new TickLayout.TextMeasurer() {
+        public float measureText(String text) {
+          synchronized (labelWidths) {
+            Float width = labelWidths.get(text);
+            if (width == null) {
+              width = measurePaint.measureText(text);
+              labelWidths.put(text, width);
+            }
+            return width;
+          }
+        }
+      };
+
+  // Allocated once so that drawing a frame doesn't create garbage.
+  private final Paint cardPaint = new Paint();
+  private final Paint buttonPaint = new Paint();
+  private final Paint rulerPaint = new Paint();
+  private final Paint cursorPaint = new Paint();
+  private final Paint inclinationPaint = new Paint();
+  private final char [] inclinationChars = new char[64];
+  private final char [] rulerChars = new char[12];
+  private final char [] batchChars = new char[64];
+  private final LabelFormatter formatter = new LabelFormatter();
+  private final String [] instructions;
+  private final String meterAbbr;
+  private final String feetAbbr;
+  private final String infinity;
+  private final String inclinationLabel;
+  private final String unitsDegrees;
+  private final String doneLabel;
+  private final String batchLabel;
+
+  // Measurements captured so far when capturing several, 0 of 0 if not.
+  private int batchCaptured = 0;
+  private int batchSize = 0;
 
   private RectF buttonDone;
   private RectF buttonLeft;
   private RectF buttonRight;
   private Path arrowLeft;
   private Path arrowRight;
-  private long debounceTime = 0;
-  private static final long DEBOUNCE_THRESH = 300;  // milliseconds
-  
-  // Some default measurements to show on the card.
-  private static final float [] GOOD_IMPERIAL_DISTS = 
-    {3, 4, 6, 8, 12, 24, 60};  // feet
-  private static final float [] GOOD_METRIC_DISTS = 
-    {1, 1.5f, 2, 3, 5, 10, 20};  // meters
-  
-  private static final float METERS_TO_FEET =  0.3048f;
-  private static final NumberFormat numberFormat3 = new DecimalFormat("0.000");
-  private static final NumberFormat numberFormat2 = new DecimalFormat("0.00");
-  private static final NumberFormat numberFormat1 = new DecimalFormat("0.0");
-  private static final NumberFormat numberFormat0 = 
-    NumberFormat.getIntegerInstance();
-  
+  // Set when a touch starts on the buttons, cleared once it presses Done,
+  // so a gesture presses Done at most once.
+  private boolean doneArmed = false;
+  // How often a held arrow button moves the line, about once a frame.
+  private static final long HOLD_REPEAT_MS = 16;
+  private boolean buttonHeld = false;
+
+  /**
+   * What a card hands over to its replacement on a configuration change.
+   * The labels and layer hold localized text laid out at the font scale, so
+   * they are only good for the same locale and font scale.
+   */
+  private static final class Retained {
+    final Map<Calibration, CardController.Solved> solved;
+    final int solvedWidth;
+    final Bitmap staticLayer;
+    final Calibration staticLayerCalibration;
+    final Locale locale;
+    final float fontScale;
+
+    Retained(Map<Calibration, CardController.Solved> solved, int solvedWidth,
+        Bitmap staticLayer, Calibration staticLayerCalibration,
+        Configuration config) {
+      this.solved = solved;
+      this.solvedWidth = solvedWidth;
+      this.staticLayer = staticLayer;
+      this.staticLayerCalibration = staticLayerCalibration;
+      this.locale = config.locale;
+      this.fontScale = config.fontScale;
+    }
+
+    boolean sameText(Configuration config) {
+      return fontScale == config.fontScale && (locale == null
+          ? config.locale == null : locale.equals(config.locale));
+    }
+  }
+
   public RangeCard(RangeFinder activity, float xdpi) {
     super(activity);
     setFocusable(true);
     this.xdpi = xdpi;
-    this.xdpm = xdpi * 39.3700787f;  // inches to meters
     this.activity = activity;
     resource = activity.getResources();
-    inclinationReader = new InclinationReader(activity);
+    inclinationReader = new InclinationReader(
+        new AndroidSensorSource(activity),
+        new InclinationReader.Callback() {
+          public void onInclinationChanged(long timestamp) {
+            postInclinationRedraw(timestamp);  // From the sensor thread.
+          }
+        });
+
+    instructions = new String[] {
+        resource.getString(R.string.instructions_line1),
+        resource.getString(R.string.instructions_line2),
+        resource.getString(R.string.instructions_line3),
+        resource.getString(R.string.instructions_line4)};
+    meterAbbr = resource.getString(R.string.meter_abbr);
+    feetAbbr = resource.getString(R.string.feet_abbr);
+    infinity = resource.getString(R.string.infinity);
+    inclinationLabel = resource.getString(R.string.inclination_label);
+    unitsDegrees = resource.getString(R.string.units_degrees);
+    doneLabel = resource.getString(R.string.done_button);
+    batchLabel = resource.getString(R.string.batch_progress);
+    controller = new CardController(xdpi, inclinationReader,
+        new CardController.Listener() {
+          public void onCursorMoved(int pixel, long eventTime) {
+            markInput(eventTime);
+            redrawCursor(pixel);
+          }
+        }, formatter, labelMeasurer, meterAbbr, feetAbbr, infinity);
+
+    cardPaint.setTextSize(20);
+    measurePaint.setTextSize(20);
+    cardPaint.setStyle(Paint.Style.STROKE);
+    cardPaint.setColor(Color.WHITE);
+    buttonPaint.setTextSize(25);
+    buttonPaint.setStyle(Paint.Style.FILL);
+    buttonPaint.setTextAlign(Align.CENTER);
+    rulerPaint.setTextSize(18);
+    rulerPaint.setStyle(Paint.Style.STROKE);
+    rulerPaint.setColor(Color.WHITE);
+    cursorPaint.setTextSize(20);
+    inputCursorPaint.setTextSize(20);
+    cursorPaint.setStyle(Paint.Style.STROKE);
+    cursorPaint.setColor(Color.RED);
+    inclinationPaint.setTextSize(20);
+    inclinationPaint.setStyle(Paint.Style.STROKE);
+    inclinationPaint.setColor(Color.YELLOW);
+    statsPaint.setTextSize(16);
+    statsPaint.setStyle(Paint.Style.FILL);
+    statsPaint.setColor(Color.GREEN);
+    statsBackgroundPaint.setStyle(Paint.Style.FILL);
+    statsBackgroundPaint.setColor(Color.BLACK);
   }
     
   /**
    * Updates user settings from the given preferences object.
    */
-  public void paramsUpdated(SharedPreferences settings) {
-    imperial = RangeFinderPreferences.isImperial(settings);
-    armlength = RangeFinderPreferences.getArmValueMeters(settings);
-    eyesep = RangeFinderPreferences.getEyeValueMeters(settings);
+  public synchronized void paramsUpdated(SharedPreferences settings) {
+    journalAdjustments = 
+        RangeFinderPreferences.isJournalingAdjustments(settings);
+    controller.setPrediction(
+        RangeFinderPreferences.isPredictingTouch(settings));
+    Calibration calibration = RangeFinderPreferences.getCalibration(settings);
+    if (controller.setCalibration(calibration)) {
+      staticLayerDirty = staticLayer == null
+          || !calibration.equals(staticLayerCalibration);
+      redraw();
+    }
+  }
+
+  /**
+   * Sets the journal that measurements are recorded in, may be null.  Can be
+   * called from any thread.
+   */
+  public void setJournal(MeasurementJournal journal) {
+    this.journal = journal;
+  }
+
+  /**
+   * Records the current measurement in the journal, if there is one.
+   * @param kind MeasurementJournal.KIND_COMMIT or KIND_ADJUST
+   */
+  public synchronized void appendToJournal(int kind) {
+    if (journal == null || !solveUserDist()) {
+      return;
+    }
+    Calibration c = controller.getCalibration();
+    if (c.isImperial()) {
+      kind |= MeasurementJournal.FLAG_IMPERIAL;
+    }
+    journal.append(System.currentTimeMillis(), kind, controller.getPixel(),
+        controller.getDistance(), controller.getAccuracy(),
+        controller.getInclinationAtLastAdjustment(), xdpi,
+        c.getEyeSeparationMeters(), c.getArmLengthMeters());
   }
 
   /**
@@ -117,7 +304,15 @@ public class RangeCard extends View {
     }
     int w = getWidth();
     int h = getHeight();
-    userPixel = w / 2;
+    if (restored) {
+      // A pixel only means the same distance on the same screen.
+      restored = false;
+      cursorPlaced = restoredGeometry == geometryHash(w);
+    }
+    if (!cursorPlaced) {
+      controller.setPixel(w / 2);
+      cursorPlaced = true;
+    }
     // Want to scale buttons based on dpi, each 1/2" wide, 5/16 high
     int buttonw = (int) (xdpi / 2);
     int buttonh = (int) (xdpi * 5 / 16);  // assuming xdpi~=ydpi
@@ -147,89 +342,372 @@ public class RangeCard extends View {
           arrowPoints[i + 1] + buttonLeft.centerY());
     }
 
+    // Room for the widest reading the inclination text can show.
+    float baseline = buttonDone.centerY();
+    float width = inclinationPaint.measureText(
+        inclinationLabel + "-180" + unitsDegrees);
+    inclinationBounds.set(9, (int) (baseline + inclinationPaint.ascent()) - 1,
+        (int) (10 + width) + 2,
+        (int) (baseline + inclinationPaint.descent()) + 2);
+    cursorBounds.setEmpty();
+    cursorSpan = NO_SPAN;
+
+    // The performance overlay goes in the top right corner.
+    int statsWidth = (int) statsPaint.measureText(
+        "sensor ms p50 000.0 p95 000.0 max 0000.0") + 4;
+    int statsHeight = (int) ((statsPaint.descent() - statsPaint.ascent())
+        * FrameStats.LINES) + 4;
+    statsBounds.set(w - statsWidth, 0, w, statsHeight);
+
     inited = true;
   }
   
   @Override
-  protected void onDraw(Canvas canvas) {
+  protected synchronized void onSizeChanged(int w, int h, int oldw,
+      int oldh) {
+    super.onSizeChanged(w, h, oldw, oldh);
+    // Button positions and the ruler depend on the view size, the tables
+    // and ticks only on the width.
+    inited = false;
+    controller.setWidth(w);
+    if (staticLayer == null || staticLayer.getWidth() != w
+        || staticLayer.getHeight() != h) {
+      staticLayerDirty = true;
+    }
+    // Lay out the buttons here rather than in the first onDraw.
     init();
-    Paint paint = new Paint();
-    paint.setTextSize(20);
-    paint.setStyle(Paint.Style.STROKE);
-    paint.setColor(Color.WHITE);
+    redraw();
+  }
+
+  /**
+   * Has the card drawn by a render thread on the given surface, which should
+   * sit under this view.  This view then only handles input.
+   */
+  public void setRenderSurface(RangeCardSurface surface) {
+    this.surface = surface;
+  }
+
+  /**
+   * Redraws the card, from the UI thread.
+   */
+  private void redraw() {
+    RangeCardSurface s = surface;
+    if (s != null) {
+      s.requestRender();
+    } else {
+      invalidate();
+    }
+  }
+
+  /**
+   * Redraws part of the card, from the UI thread.
+   */
+  private void redraw(Rect r) {
+    RangeCardSurface s = surface;
+    if (s != null) {
+      s.requestRender(r.left, r.top, r.right, r.bottom);
+    } else {
+      invalidate(r);
+    }
+  }
+
+  /**
+   * Redraws the inclination text, from any thread.  With a render thread this
+   * doesn't go through the UI thread at all.
+   * @param timestamp when the reading was taken, from the SensorEvent, or 0
+   *     when the reader stops being supported
+   */
+  private synchronized void postInclinationRedraw(long timestamp) {
+    if (!inited) {
+      return;  // Drawn with everything else in the first frame.
+    }
+    if (statsShown && statsSensorTime == 0 && timestamp != 0) {
+      // Sensor timestamps are in uptime or elapsed realtime nanoseconds
+      // depending on the device, go by whichever is closer.
+      long now = System.nanoTime();
+      long elapsed = SystemClock.elapsedRealtime() * 1000000L;
+      statsSensorTime = now;
+      statsSensorAge = Math.max(0,
+          Math.min(Math.abs(now - timestamp), Math.abs(elapsed - timestamp)));
+    }
+    Rect r = inclinationBounds;
+    RangeCardSurface s = surface;
+    if (s != null) {
+      s.requestRender(r.left, r.top, r.right, r.bottom);
+    } else {
+      postInvalidate(r.left, r.top, r.right, r.bottom);
+    }
+  }
+
+  /**
+   * Redraws where the red line may still be drawn and where it will be at
+   * the given pixel, from input on the UI thread without the card's lock.
+   * Redraws everything if its label isn't known yet.
+   */
+  private void redrawCursor(int pixel) {
+    String label = inited ? controller.getLabelIfSolved(pixel) : null;
+    if (label == null) {
+      redraw();
+      return;
+    }
+    getCursorBounds(inputCursorPaint, pixel, label, dirtyRect);
+    long span = cursorSpan;
+    int left = (int) (span >> 32);
+    int right = (int) span;
+    if (left < right) {
+      dirtyRect.union(left, dirtyRect.top, right, dirtyRect.bottom);
+    }
+    redraw(dirtyRect);
+  }
+
+  /**
+   * Sets bounds to the area covered by the red line at pixel and its label,
+   * see drawCard.
+   * @param paint cursorPaint on the drawing thread, or a copy of it on others
+   */
+  private void getCursorBounds(Paint paint, int pixel, String label,
+      Rect bounds) {
+    float width = paint.measureText(label);
+    bounds.set(pixel - 12, 0,
+        (int) Math.max(pixel + 8, pixel - 10 + width + 2),
+        (int) (200 + paint.descent()) + 2);
+  }
+
+  @Override
+  protected void onDraw(Canvas canvas) {
+    if (surface == null) {
+      drawCard(canvas);
+    }
+    super.onDraw(canvas);
+  }
+
+  /**
+   * Draws the whole card.  Called from onDraw, or from the render thread.
+   * Holds the card's lock only while it brings the card up to date with the
+   * input and settings and takes what the frame shows, and draws without
+   * it.  Input doesn't take the lock at all, so a slow frame never holds it
+   * up.
+   */
+  void drawCard(Canvas canvas) {
+    long drawStart = statsShown ? System.nanoTime() : 0;
+    // Only the invalidated area needs to be drawn, the rest is clipped.
+    Rect clip = clipRect;
+    if (!canvas.getClipBounds(clip)) {
+      clip.set(0, 0, getWidth(), getHeight());
+    }
+    Bitmap layer;
+    boolean layerShown;
+    boolean cursorShown;
+    int pixel = 0;
+    String label = null;
+    int inclinationLength = 0;
+    int batchLength = 0;
+    float buttonY;
+    synchronized (this) {
+      init();
+      applyPendingInput();
+      if (staticLayerDirty) {
+        buildStaticLayer();
+      }
+      layer = staticLayer;
+      layerShown = layer != null
+          && clip.intersect(0, 0, layer.getWidth(), layer.getHeight());
+      // Until the calibration is complete there's no distance to show,
+      // just the card behind the prompt to calibrate.
+      cursorShown = solveUserDist();
+      if (cursorShown) {
+        pixel = controller.getPixel();
+        label = controller.getLabel();
+      }
+      // Where the red line may still be on the screen: not where this
+      // frame redraws all of the old one, and wherever it is drawn now.
+      if (layerShown && clip.contains(cursorBounds)) {
+        cursorBounds.setEmpty();
+      }
+      if (cursorShown) {
+        getCursorBounds(cursorPaint, pixel, label, lineBounds);
+        cursorBounds.union(lineBounds);
+      }
+      cursorSpan = cursorBounds.isEmpty() ? NO_SPAN
+          : ((long) cursorBounds.left << 32)
+              | (cursorBounds.right & 0xFFFFFFFFL);
+
+      if (inclinationReader.isSupported()
+          && Rect.intersects(clip, inclinationBounds)) {
+        inclinationLength = controller.formatInclination(inclinationLabel,
+            unitsDegrees, inclinationChars);
+        if (statsSensorTime != 0) {
+          stats.recordSensorLatency((System.nanoTime() - statsSensorTime
+              + statsSensorAge) / 1000000);
+          statsSensorTime = 0;
+        }
+      }
+      if (batchSize > 0) {
+        int n = formatter.appendString(batchLabel, batchChars, 0);
+        n = formatter.appendInt(batchCaptured, batchChars, n);
+        batchChars[n++] = '/';
+        batchLength = formatter.appendInt(batchSize, batchChars, n);
+      }
+      buttonY = buttonDone.centerY();
+    }
+
+    if (layerShown) {
+      canvas.drawBitmap(layer, clip, clip, null);
+    }
+    if (cursorShown) {
+      Paint paint = cursorPaint;
+      canvas.drawLine(pixel, 0, pixel, 175, paint);
+      canvas.drawLine(pixel, 0, pixel - 5, 10, paint);  // arrow end
+      canvas.drawLine(pixel + 1, 0, pixel + 6, 10, paint);  // arrow end
+      canvas.drawText(label, pixel - 10, 200, paint);
+    }
+    if (inclinationLength > 0) {
+      canvas.drawText(inclinationChars, 0, inclinationLength, 10, buttonY,
+          inclinationPaint);
+    }
+    if (batchLength > 0) {
+      canvas.drawText(batchChars, 0, batchLength, 10, buttonY - 30,
+          cardPaint);
+    }
+    if (statsShown) {
+      long inputTime = statsInputTime;
+      if (inputTime != 0) {
+        stats.recordTouchLatency(SystemClock.uptimeMillis() - inputTime);
+        statsInputTime = 0;
+      }
+      stats.recordFrame(System.nanoTime() - drawStart);
+      if (Rect.intersects(clip, statsBounds)) {
+        drawStats(canvas);
+      }
+    }
+    if (!drawnOnce) {
+      drawnOnce = true;
+      // Posted, so it runs once this frame is on the screen.
+      post(firstDrawTask);
+    }
+  }
+
+  /**
+   * Draws the performance counters over the top right of the card.
+   */
+  private void drawStats(Canvas canvas) {
+    canvas.drawRect(statsBounds, statsBackgroundPaint);
+    float lineHeight = statsPaint.descent() - statsPaint.ascent();
+    float y = statsBounds.top + 2 - statsPaint.ascent();
+    for (int i = 0; i < FrameStats.LINES; i++) {
+      int n = stats.formatLine(i, formatter, statsChars);
+      canvas.drawText(statsChars, 0, n, statsBounds.left + 2, y, statsPaint);
+      y += lineHeight;
+    }
+  }
+
+  /**
+   * Shows or hides the performance overlay.  Counting starts over each time
+   * it is shown.
+   */
+  public synchronized void setStatsShown(boolean shown) {
+    if (shown && !statsShown) {
+      stats.reset();
+      statsInputTime = 0;
+      statsSensorTime = 0;
+      postDelayed(statsRefreshTask, STATS_REFRESH_MS);
+    } else if (!shown) {
+      removeCallbacks(statsRefreshTask);
+    }
+    statsShown = shown;
+    redraw();
+  }
+
+  public synchronized boolean isStatsShown() {
+    return statsShown;
+  }
+
+  public FrameStats getFrameStats() {
+    return stats;
+  }
+
+  // Keeps the overlay up to date while nothing else is being redrawn.
+  private final Runnable statsRefreshTask = new Runnable() {
+    @Override
+    public void run() {
+      synchronized (RangeCard.this) {
+        if (statsShown) {
+          redraw(statsBounds);
+          postDelayed(this, STATS_REFRESH_MS);
+        }
+      }
+    }
+  };
+
+  private final Runnable firstDrawTask = new Runnable() {
+    @Override
+    public void run() {
+      if (resumed) {
+        inclinationReader.resume();
+      }
+      activity.onFirstDraw();
+    }
+  };
+
+  /**
+   * Renders the instructions, tick marks, buttons and ruler into the static
+   * layer.  Only needs to happen when the settings or view size change.
+   */
+  private void buildStaticLayer() {
+    int w = getWidth();
+    int h = getHeight();
+    if (w <= 0 || h <= 0) {
+      return;
+    }
+    if (staticLayer == null || staticLayer.getWidth() != w
+        || staticLayer.getHeight() != h) {
+      if (staticLayer != null) {
+        staticLayer.recycle();
+      }
+      // The window background is black, so an opaque 565 layer looks the
+      // same and is cheaper to blit than ARGB.
+      staticLayer = Bitmap.createBitmap(w, h, Bitmap.Config.RGB_565);
+    }
+    Canvas canvas = new Canvas(staticLayer);
+    canvas.drawColor(Color.BLACK);
+    Paint paint = cardPaint;
     canvas.drawLine(0, 0, 0, 100, paint);
-    canvas.drawText(resource.getString(R.string.instructions_line1), 
-        0, 120, paint);
-    canvas.drawText(resource.getString(R.string.instructions_line2), 
-        0, 140, paint);
-    canvas.drawText(resource.getString(R.string.instructions_line3), 
-        0, 160, paint);
-    canvas.drawText(resource.getString(R.string.instructions_line4), 
-        0, 180, paint);
-    // Draw some tick marks based on armlength A and eyesep E.
-    // displacement X = E*(D-A)/D, distance to object is D
-    // Or, for D given X, XD = ED-EA, D(X-E) = -EA, D = EA/(E-X)
-    // For now, just render some defaults.
-    // Displacement can't be more than E, and distance can't be less than A.
-    float [] dists = GOOD_METRIC_DISTS;
-    if (imperial) {
-      dists = GOOD_IMPERIAL_DISTS;
-    }
-    int stagger = 0;
+    for (int i = 0; i < instructions.length; i++) {
+      canvas.drawText(instructions[i], 0, 120 + 20 * i, paint);
+    }
+    // Draw tick marks based on armlength and eyesep, see TickLayout.  There
+    // are none until the calibration is complete.
+    TickLayout ticks = controller.getTicks();
     canvas.drawLine(0, 0, 5, 10, paint);  // arrow end on first line
-    for (float i : dists) {
-      float d = i;
-      String str = String.valueOf((int) i) 
-          + resource.getString(R.string.meter_abbr);
-      if (i % 1 > 0.1) { // ok to show a decimal
-        str = String.valueOf(i) + resource.getString(R.string.meter_abbr);
+    for (int j = 0; ticks != null && j < ticks.getCount(); j++) {
+      float x = ticks.getX(j);
+      String label = ticks.getLabel(j);
+      if (label == null) {
+        canvas.drawLine(x, 0, x, ticks.isMajor(j) ? 35 : 20, paint);
+        continue;
       }
-      if (imperial) {
-        d = i * METERS_TO_FEET;
-        str = String.valueOf((int) i) + resource.getString(R.string.feet_abbr);
-      }
-      float displ = eyesep * (d - armlength) / (d);
-      // What pixel to draw at?  use dpi
-      float x = displ * xdpm;
+      int stagger = 20 * ticks.getRow(j);
       canvas.drawLine(x, 0, x, 55 + stagger, paint);
-      canvas.drawText(str, x - 8, 70 + stagger, paint);
-      stagger = stagger >= 40 ? 0 : stagger + 20;
-    }
-    solveUserDist();
-    paint.setColor(Color.RED);
-    canvas.drawLine(userPixel, 0, userPixel, 175, paint);
-    canvas.drawLine(userPixel, 0, userPixel - 5, 10, paint);  // arrow end
-    canvas.drawLine(userPixel + 1, 0, userPixel + 6, 10, paint);  // arrow end
-    canvas.drawText(userDistStr, userPixel - 10, 200, paint);
-
-    if (inclinationReader.isSupported()) {
-      paint.setColor(Color.YELLOW);
-      canvas.drawText(resource.getString(R.string.inclination_label) + 
-          inclinationReader.getInclination() + 
-          resource.getString(R.string.units_degrees),
-          10, buttonDone.centerY(), paint);
+      canvas.drawText(label, ticks.getLabelX(j), 70 + stagger, paint);
     }
-    
     drawButtons(canvas);
     // Just for fun, draw a ruler on the other edge
     drawRuler(canvas);
-    super.onDraw(canvas);
+    staticLayerDirty = false;
+    staticLayerCalibration = controller.getCalibration();
   }
   
   /**
    * Draws the left, right, and done buttons on the display.
    */
   private void drawButtons(Canvas canvas) {
-    Paint paint = new Paint();
-    paint.setTextSize(25);
-    paint.setStyle(Paint.Style.FILL);
+    Paint paint = buttonPaint;
     paint.setColor(Color.GRAY);
     canvas.drawRoundRect(buttonDone, 4, 4, paint);
     canvas.drawRoundRect(buttonLeft, 4, 4, paint);
     canvas.drawRoundRect(buttonRight, 4, 4, paint);
-    paint.setTextAlign(Align.CENTER);
     paint.setColor(Color.BLACK);
-    canvas.drawText(resource.getString(R.string.done_button),
+    canvas.drawText(doneLabel,
         buttonDone.centerX(), buttonDone.centerY() + 10, paint);
     canvas.drawPath(arrowLeft, paint);
     canvas.drawPath(arrowRight, paint);
@@ -239,225 +717,287 @@ public class RangeCard extends View {
    * Solves the distance based on user settings.
    * @return false if parameters are not set
    */
-  public boolean solveUserDist() {
-    if (xdpm == 0 || eyesep == 0 || armlength == 0) {
+  public synchronized boolean solveUserDist() {
+    applyPendingInput();
+    if (!controller.solve()) {
       return false;
     }
-    float userDisp = userPixel / xdpm;
-    userDist = eyesep * armlength / (eyesep - userDisp);
-    // Method to determine accuracy... 
-    // How much change would 1/4 mm in displacement change distance?
-    // This is about around 2 pixels on normal dpi range devices.
-    // Go this amount on either side of user value and then average difference.
-    // This could still be something smarter...
-    float delta = 0.00025f;
-    float acc1 = (eyesep * armlength 
-        / (eyesep - (userDisp + delta))) - userDist;
-    float acc2 = userDist - (eyesep * armlength
-        / (eyesep - (userDisp - delta)));
-    userDistAccuracy = (acc1 + acc2)/2;
-    // Accuracy could be as bad as infinity, which isn't very useful, so cap
-    // it at 100% error.  Negative means some kind of error, so cap that too.
-    if (userDistAccuracy > userDist || userDistAccuracy < 0) {
-      System.out.println("acc is "+userDistAccuracy);
-      userDistAccuracy = userDist;
-    }
-    // Number format accuracy as appropriate...  Could be smarter about 
-    // formatting based on imperial/metric, but doesn't really matter.
-    NumberFormat numberFormat = numberFormat3;
-    if (userDistAccuracy > 1) {
-      numberFormat = numberFormat0;
-    } else if (userDistAccuracy > 0.1) {
-      numberFormat = numberFormat1;
-    } else if (userDistAccuracy > 0.01) {
-      numberFormat = numberFormat2;
-    }
-    userDistStr = numberFormat.format(userDist) 
-        + resource.getString(R.string.meter_abbr);
-    if (imperial) {
-      userDistStr = numberFormat.format(userDist / METERS_TO_FEET)
-          + resource.getString(R.string.feet_abbr);
-    }
-    if (userDisp >= eyesep) {
-      userDisp = eyesep;
-      userDistAccuracy = -1;
-      userDistStr = resource.getString(R.string.infinity);
+    if (statsShown) {
+      stats.recordSolve(controller.builtTable());
     }
     return true;
   }
   
-  public float getUserDistance() {
-    return userDist;
+  /**
+   * Solves the table and ticks for a calibration ahead of time, so that
+   * switching to it later doesn't.  Call it off the UI thread.
+   */
+  public void precompute(Calibration c) {
+    int width;
+    synchronized (this) {
+      width = controller.getWidth();
+      if (!controller.needsPrecompute(c)) {
+        return;
+      }
+    }
+    CardController.Solved solved = controller.precompute(c, width);
+    synchronized (this) {
+      controller.addPrecomputed(c, width, solved);
+    }
+  }
+
+  /**
+   * Saves where the red line is, and a hash of the screen geometry it is
+   * relative to, so the measurement can be picked up again after the
+   * process is killed.
+   */
+  public synchronized void saveState(Bundle out) {
+    applyPendingInput();
+    out.putInt(STATE_PIXEL, controller.getPixel());
+    out.putInt(STATE_INCLINATION,
+        controller.getInclinationAtLastAdjustment());
+    out.putInt(STATE_GEOMETRY, geometryHash(getWidth()));
+  }
+
+  /**
+   * Puts the red line back where {@link #saveState} found it, unless the
+   * screen has changed since.  Call it before the card is laid out.
+   */
+  public synchronized void restoreState(Bundle in) {
+    if (!in.containsKey(STATE_PIXEL)) {
+      return;
+    }
+    controller.setPixel(in.getInt(STATE_PIXEL, controller.getPixel()));
+    controller.setInclinationAtLastAdjustment(
+        in.getInt(STATE_INCLINATION, NO_MEASUREMENT));
+    restoredGeometry = in.getInt(STATE_GEOMETRY, 0);
+    restored = true;
+    cursorPlaced = true;
+  }
+
+  private int geometryHash(int width) {
+    return 31 * Float.floatToIntBits(xdpi) + width;
+  }
+
+  /**
+   * @return the solved tables and static layer, for the card that replaces
+   *     this one when the activity is recreated for a configuration change
+   */
+  public synchronized Object retainLayout() {
+    return new Retained(controller.getSolved(), controller.getWidth(),
+        staticLayer, staticLayerCalibration, resource.getConfiguration());
+  }
+
+  /**
+   * Takes over what {@link #retainLayout} returned from the card this one
+   * replaces, so nothing has to be solved or drawn again if the settings
+   * and size are the same.  Nothing is taken over if the locale or font
+   * scale changed.  Call it before {@link #paramsUpdated}.
+   */
+  public synchronized void reuseLayout(Object retained) {
+    if (!(retained instanceof Retained)) {
+      return;
+    }
+    Retained r = (Retained) retained;
+    if (!r.sameText(resource.getConfiguration())) {
+      return;
+    }
+    controller.reuseSolved(r.solved, r.solvedWidth);
+    staticLayer = r.staticLayer;
+    staticLayerCalibration = r.staticLayerCalibration;
+  }
+
+  public synchronized float getUserDistance() {
+    return controller.getDistance();
   }
   
-  public float getUserDistanceAccuracy() {
-    return userDistAccuracy;
+  public synchronized float getUserDistanceAccuracy() {
+    return controller.getAccuracy();
   }
   
   private void drawRuler(Canvas canvas) {
-    Paint paint = new Paint();
-    paint.setTextSize(18);
-    paint.setStyle(Paint.Style.STROKE);
-    paint.setColor(Color.WHITE);
+    Paint paint = rulerPaint;
+    char [] label = rulerChars;
     int h = getHeight();
-    if (imperial) {
-      float inches = getWidth() / xdpi;
-      // divide inches into 1/16ths
-      int endinches = (int) (inches * 16);
-      for (int i = 0; i <= endinches; i++) {  // in 16ths of inch 
-        int p = (int) (i * xdpi / 16);
-        if (i % 16 == 0) {
-          canvas.drawLine(p, h - 28, p, h, paint);
-          canvas.drawText(String.valueOf(i / 16), p, h - 30, paint);
-        } else if (i % 8 == 0) {
-          canvas.drawLine(p, h - 22, p, h, paint);
-        } else if (i % 4 == 0) {
-          canvas.drawLine(p, h - 15, p, h, paint);
-        } else {
-          canvas.drawLine(p, h - 8, p, h, paint);
-        }
-      }
-    } else {
-      float cm = getWidth() / xdpm * 100;
-      // divide cm's into 1/10ths
-      int endcm = (int) (cm * 10);
-      for (int i = 0; i <= endcm; i++) {  // in 10ths of cms 
-        int p = (int) (i * xdpm / 1000);
-        if (i % 10 == 0) {
-          canvas.drawLine(p, h - 25, p, h, paint);
-          canvas.drawText(String.valueOf(i / 10), p, h - 30, paint);
-        } else if (i % 5 == 0) {
-          canvas.drawLine(p, h - 17, p, h, paint);
-        } else {
-          canvas.drawLine(p, h - 10, p, h, paint);
-        }
+    RulerLayout ruler = new RulerLayout(xdpi, getWidth(),
+        controller.getCalibration().isImperial());
+    for (int i = 0; i < ruler.getCount(); i++) {
+      float x = ruler.getX(i);
+      canvas.drawLine(x, h - ruler.getLength(i), x, h, paint);
+      int number = ruler.getNumber(i);
+      if (number != RulerLayout.NO_NUMBER) {
+        canvas.drawText(label, 0, formatter.appendInt(number, label, 0),
+            x, h - 30, paint);
       }
     }
   }
+
   
   @Override
   public boolean onTrackballEvent(MotionEvent event) {
     // Handle trackball to move userPixel (red line).
-    int incr = (int) (event.getX() * 10);
-    if (incr == 0) {
-      if (event.getX() > 0) {
-        incr = 1;
-      } else {
-        incr = -1;
-      }
-    }
-    userPixel += incr;
-    handleUserPixelChanged();
+    controller.trackball(event.getX(), event.getEventTime());
     return true;
   }
   
   @Override
   public boolean onTouchEvent(MotionEvent evt) {
-    // Implement basic debouncing to avoid unnecessary multiple triggering.
-    // Will only trigger once in first 300ms, and then will act like key
-    // repeat.  So you can touch and hold on left/right buttons to move more.
-    boolean isDebounced = false;
-    if (evt.getAction() == MotionEvent.ACTION_DOWN) {
-      debounceTime = System.currentTimeMillis();
-      isDebounced = true;
-    } else if (System.currentTimeMillis() - debounceTime > DEBOUNCE_THRESH) {
-      isDebounced = true;
+    // Done is pressed once per gesture, when it is touched or when a touch
+    // that started on the buttons is lifted on it, never by moves or a
+    // finger held on it.
+    int action = evt.getAction();
+    if (action == MotionEvent.ACTION_DOWN) {
+      doneArmed = evt.getY() >= buttonDone.top - 10;
+    }
+    // The left/right buttons move the line a pixel when tapped, and keep
+    // moving it faster and faster while held.
+    int direction = 0;
+    if (buttonLeft.contains(evt.getX(), evt.getY())) {
+      direction = -1;
+    } else if (buttonRight.contains(evt.getX(), evt.getY())) {
+      direction = 1;
+    }
+    if (buttonHeld && (direction == 0 || action == MotionEvent.ACTION_UP
+        || action == MotionEvent.ACTION_CANCEL)) {
+      releaseButton();
     }
     // If above the buttons, then use it to position userPixel (red line).
     // Otherwise count it as a button press.
     if (evt.getY() < buttonDone.top - 10) {
-      userPixel = (int) evt.getX();
-      handleUserPixelChanged();
-    } else if (isDebounced && buttonLeft.contains(evt.getX(), evt.getY())) {
-      userPixel -= 1;
-      handleUserPixelChanged();
-    } else if (isDebounced && buttonRight.contains(evt.getX(), evt.getY())) {
-      userPixel += 1;
-      handleUserPixelChanged();
-    } else if (isDebounced && buttonDone.contains(evt.getX(), evt.getY())) {
-      activity.finish();
+      trackTouch(evt);
+    } else if (direction != 0) {
+      if (action == MotionEvent.ACTION_DOWN) {
+        controller.press(direction, evt.getEventTime());
+        buttonHeld = true;
+        postDelayed(holdTask, CursorController.REPEAT_DELAY_MS);
+      }
+    } else if (doneArmed && (action == MotionEvent.ACTION_DOWN
+        || action == MotionEvent.ACTION_UP)
+        && buttonDone.contains(evt.getX(), evt.getY())) {
+      doneArmed = false;
+      activity.onDone();
+    }
+    if (action == MotionEvent.ACTION_UP
+        || action == MotionEvent.ACTION_CANCEL) {
+      doneArmed = false;
     }
     return true;
   }
+
+  private void releaseButton() {
+    buttonHeld = false;
+    controller.release();
+    removeCallbacks(holdTask);
+  }
+
+  /** Moves the line while an arrow button is held, about once a frame. */
+  private final Runnable holdTask = new Runnable() {
+    @Override
+    public void run() {
+      if (buttonHeld) {
+        controller.repeat(SystemClock.uptimeMillis());
+        postDelayed(this, HOLD_REPEAT_MS);
+      }
+    }
+  };
   
   @Override
   public boolean onKeyDown(int keyCode, KeyEvent event) {
-    // Handle keypad left/right to move userPixel (red line).
-    boolean adjusted = false;
+    // Handle keypad left/right to move userPixel (red line), faster the
+    // longer the key is held.
+    int direction;
     if (keyCode == KeyEvent.KEYCODE_DPAD_RIGHT) {
-      userPixel -= 1;
-      adjusted = true;
-    } 
-    if (keyCode == KeyEvent.KEYCODE_DPAD_LEFT) {
-      userPixel += 1;
-      adjusted = true;
-    }
-    if (adjusted) {
-      handleUserPixelChanged();
+      direction = -1;
+    } else if (keyCode == KeyEvent.KEYCODE_DPAD_LEFT) {
+      direction = 1;
+    } else {
+      return false;
+    }
+    if (event.getRepeatCount() == 0) {
+      controller.press(direction, event.getDownTime());
+    } else {
+      controller.repeat(event.getEventTime());
+    }
+    return true;
+  }
+
+  @Override
+  public boolean onKeyUp(int keyCode, KeyEvent event) {
+    if (keyCode == KeyEvent.KEYCODE_DPAD_RIGHT
+        || keyCode == KeyEvent.KEYCODE_DPAD_LEFT) {
+      controller.release();
       return true;
     }
     return false;
   }
-  
+
   /**
-   * Cap the values of user pixel to screen size and set inclination reading,
-   * and redraw.
+   * Passes a drag to the controller.  Digitizers report faster than the
+   * display refreshes, so only the newest sample moves the red line; the
+   * ones batched up in the event give the speed for prediction.
    */
-  private void handleUserPixelChanged() {
-    if (userPixel < 0) {
-      userPixel = 0;
+  private void trackTouch(MotionEvent evt) {
+    int action = evt.getAction();
+    if (action == MotionEvent.ACTION_MOVE) {
+      for (int i = 0; i < evt.getHistorySize(); i++) {
+        controller.touchHistory(evt.getHistoricalX(i),
+            evt.getHistoricalEventTime(i));
+      }
     }
-    if (userPixel > getWidth()) {
-      userPixel = getWidth();
+    controller.touch(action, evt.getX(), evt.getEventTime());
+  }
+
+  /**
+   * Notes when the oldest input not yet drawn arrived, for the stats.
+   */
+  private void markInput(long eventTime) {
+    if (statsShown && statsInputTime == 0) {
+      statsInputTime = eventTime;
     }
-    if (inclinationReader.isSupported()) {
-      inclinationAtLastAdjustment = inclinationReader.getInclination();
+  }
+
+  /**
+   * Applies the input received since the last frame, so the red line and
+   * distance are updated at most once a frame however often input arrives.
+   */
+  private void applyPendingInput() {
+    if (controller.applyPendingInput() && journalAdjustments) {
+      appendToJournal(MeasurementJournal.KIND_ADJUST);
     }
-    this.invalidate();
   }
   
-  public int getInclinationAtLastAdjustment() {
-    return inclinationAtLastAdjustment;
+  /**
+   * Shows how many of a batch of measurements have been captured.
+   */
+  public synchronized void setBatchProgress(int captured, int size) {
+    batchCaptured = captured;
+    batchSize = size;
+    redraw();
   }
-  
-  public class InclinationReader implements SensorEventListener {
 
-    private boolean supported = false;
-    private SensorManager sensorMgr;
-    private double inclination;
-    // TODO: possibly provide some calibration.
-    
-    public InclinationReader(Context c) {
-      sensorMgr = (SensorManager) c.getSystemService(Context.SENSOR_SERVICE);
-      Sensor sensor = sensorMgr.getDefaultSensor(Sensor.TYPE_ACCELEROMETER);
-      if (sensor != null) {
-        supported = sensorMgr.registerListener(this, sensor,
-            SensorManager.SENSOR_DELAY_NORMAL);  // Relatively low update rate.
-      }
+  public synchronized int getInclinationAtLastAdjustment() {
+    return controller.getInclinationAtLastAdjustment();
+  }
+  
+  /** Listens to the sensors again, once the first frame has been drawn. */
+  public void onResume() {
+    resumed = true;
+    if (drawnOnce) {
+      inclinationReader.resume();
     }
+  }
 
-    public boolean isSupported() {
-      return supported;
-    }
-    
-    public int getInclination() {
-      return (int)Math.toDegrees(inclination);
-    }
-    
-    @Override
-    public void onAccuracyChanged(Sensor sensor, int accuracy) {
-    }
+  /** Stops listening to the sensors while the activity is in the background. */
+  public void onPause() {
+    resumed = false;
+    inclinationReader.pause();
+  }
 
-    @Override
-    public void onSensorChanged(SensorEvent event) {
-      // Measure angle between z (up) and the x-y plane.
-      float x = event.values[0];
-      float y = event.values[1];
-      float z = event.values[2];
-      double magnitude = Math.sqrt(x * x + y * y + z * z);
-      // Invert this because want straight up to be 90, down -90.
-      inclination = - Math.asin(z / magnitude);
-      invalidate();  // Redraw.
-    }
+  @Override
+  protected void onDetachedFromWindow() {
+    inclinationReader.shutdown();
+    removeCallbacks(statsRefreshTask);
+    removeCallbacks(holdTask);
+    super.onDetachedFromWindow();
   }
 }
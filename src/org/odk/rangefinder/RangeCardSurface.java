@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package org.odk.rangefinder;
+
+import android.content.Context;
+import android.graphics.Canvas;
+import android.graphics.Rect;
+import android.os.Process;
+import android.view.SurfaceHolder;
+import android.view.SurfaceView;
+
+/**
+ * Surface the range card is drawn on by its own render thread, so drawing
+ * keeps up while the UI thread is busy with dialogs or the help page.  The
+ * thread sleeps until a redraw is requested, and several requests made while
+ * it is drawing collapse into one frame, which only redraws the union of the
+ * areas they asked for.  Posting the canvas blocks until the
+ * display takes the next buffer, which paces the thread to the display.
+ */
+public class RangeCardSurface extends SurfaceView
+    implements SurfaceHolder.Callback, Runnable {
+
+  private final RangeCard card;
+  private final Object lock = new Object();
+  private boolean dirty = false;
+  private boolean running = false;
+  // Area to redraw in the next frame, empty for all of it.
+  private final Rect dirtyRect = new Rect();
+  private final Rect frameRect = new Rect();
+  private Thread renderThread;
+
+  public RangeCardSurface(Context context, RangeCard card) {
+    super(context);
+    this.card = card;
+    getHolder().addCallback(this);
+  }
+
+  /**
+   * Asks for a new frame, from any thread.
+   */
+  public void requestRender() {
+    synchronized (lock) {
+      dirty = true;
+      dirtyRect.setEmpty();
+      lock.notify();
+    }
+  }
+
+  /**
+   * Asks for a new frame that only redraws the given area, from any thread.
+   */
+  public void requestRender(int left, int top, int right, int bottom) {
+    synchronized (lock) {
+      if (!dirty) {
+        dirty = true;
+        dirtyRect.set(left, top, right, bottom);
+      } else if (!dirtyRect.isEmpty()) {
+        dirtyRect.union(left, top, right, bottom);
+      }
+      lock.notify();
+    }
+  }
+
+  @Override
+  public void surfaceCreated(SurfaceHolder holder) {
+    synchronized (lock) {
+      running = true;
+      dirty = true;
+      dirtyRect.setEmpty();
+    }
+    renderThread = new Thread(this, "RangeCardRender");
+    renderThread.start();
+  }
+
+  @Override
+  public void surfaceChanged(SurfaceHolder holder, int format, int width,
+      int height) {
+    requestRender();
+  }
+
+  @Override
+  public void surfaceDestroyed(SurfaceHolder holder) {
+    synchronized (lock) {
+      running = false;
+      lock.notify();
+    }
+    // The surface goes away once this returns, so wait for the last frame.
+    boolean joined = false;
+    while (!joined) {
+      try {
+        renderThread.join();
+        joined = true;
+      } catch (InterruptedException e) {
+        // Keep waiting.
+      }
+    }
+    renderThread = null;
+  }
+
+  @Override
+  public void run() {
+    Process.setThreadPriority(Process.THREAD_PRIORITY_DISPLAY);
+    SurfaceHolder holder = getHolder();
+    while (true) {
+      synchronized (lock) {
+        while (running && !dirty) {
+          try {
+            lock.wait();
+          } catch (InterruptedException e) {
+            // Check the flags again.
+          }
+        }
+        if (!running) {
+          return;
+        }
+        dirty = false;
+        frameRect.set(dirtyRect);
+      }
+      // May grow the area to what the buffer needs, drawCard honors the clip.
+      Canvas canvas = frameRect.isEmpty() ? holder.lockCanvas()
+          : holder.lockCanvas(frameRect);
+      if (canvas == null) {
+        continue;
+      }
+      try {
+        card.drawCard(canvas);
+      } finally {
+        holder.unlockCanvasAndPost(canvas);
+      }
+    }
+  }
+}
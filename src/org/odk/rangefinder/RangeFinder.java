@@ -19,16 +19,33 @@ package org.odk.rangefinder;
 
 import android.app.Activity;
 import android.app.AlertDialog;
+import android.content.Context;
 import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.SharedPreferences;
 import android.content.pm.ActivityInfo;
+import android.os.Build;
 import android.os.Bundle;
+import android.os.Environment;
 import android.util.DisplayMetrics;
+import android.util.Log;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.view.ViewGroup.LayoutParams;
-import android.webkit.WebView;
+import android.widget.EditText;
+import android.widget.FrameLayout;
+import android.widget.ScrollView;
+import android.widget.TextView;
+import android.widget.Toast;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
  * Activity for the Range Finder.  Displays the range card, handles launching
@@ -39,39 +56,168 @@ import android.webkit.WebView;
 public class RangeFinder extends Activity {
   
   public static final String PREFS_NAME = "RangeFinderPrefsFile";
+  /**
+   * Intent extra with the number of measurements to capture in one session.
+   * They are returned as arrays in the distances, accuracies, inclinations
+   * and timestamps extras, instead of the single distance.
+   */
+  public static final String EXTRA_BATCH = "batch";
+  private static final String TAG = "RangeFinder";
+  private static final String JOURNAL_FILE = "measurements.journal";
+  private static final String EXPORT_FILE = "rangefinder_measurements.csv";
+  private static final String STATS_FILE = "rangefinder_frame_stats.txt";
   private static final int PREFS = 0;
   private static final int EXIT = 1;
   private static final int HELP = 2;
+  private static final int EXPORT = 3;
+  private static final int STATS = 4;
+  private static final int SAVE_STATS = 5;
+  private static final int PROFILES = 6;
+  private static final int HISTORY = 7;
+  private static final int HELP_PADDING = 10;  // pixels
+  private static final String STATE_BATCH_CAPTURED = "batch.captured";
+  private static final String STATE_BATCH_DISTANCES = "batch.distances";
+  private static final String STATE_BATCH_ACCURACIES = "batch.accuracies";
+  private static final String STATE_BATCH_INCLINATIONS = "batch.inclinations";
+  private static final String STATE_BATCH_TIMESTAMPS = "batch.timestamps";
+
+  /** Runs disk I/O and other slow work off the UI thread, in order. */
+  static final ExecutorService background = 
+      Executors.newSingleThreadExecutor();
+  private static MeasurementJournal journal;
+  private static MeasurementHistory history;
   
   private RangeCard rangeCard;
   private SharedPreferences settings;
   private AlertDialog.Builder prefdialog;
+  private boolean firstDrawn = false;
+  private int helpWidth;  // Widest a help image can be shown.
+
+  // Batch capture, batchSize is 0 when returning a single measurement.
+  private int batchSize = 0;
+  private int batchCaptured = 0;
+  private float [] batchDistances;
+  private float [] batchAccuracies;
+  private int [] batchInclinations;
+  private long [] batchTimestamps;
   
   /** Called when the activity is first created. */
   @Override
   public void onCreate(Bundle savedInstanceState) {
+    StartupTrace.start();
     super.onCreate(savedInstanceState);
 
-    settings = getSharedPreferences(PREFS_NAME, 0);
-    checkPreferencesOk();
+    StartupTrace.beginSection("RangeCard");
     this.setRequestedOrientation(ActivityInfo.SCREEN_ORIENTATION_LANDSCAPE);
     DisplayMetrics metrics = new DisplayMetrics();
     getWindowManager().getDefaultDisplay().getMetrics(metrics); 
+    // Dialogs are about as wide as the shorter side of the screen.
+    helpWidth = Math.min(metrics.widthPixels, metrics.heightPixels)
+        - 4 * HELP_PADDING;
     rangeCard = new RangeCard(this, metrics.xdpi);  
+    // Recreated for a configuration change, the old card's tables and
+    // static layer are still good.
+    rangeCard.reuseLayout(getLastNonConfigurationInstance());
+    if (savedInstanceState != null) {
+      rangeCard.restoreState(savedInstanceState);
+    }
+    StartupTrace.endSection();
+    StartupTrace.beginSection("Preferences");
+    settings = getSharedPreferences(PREFS_NAME, 0);
     rangeCard.paramsUpdated(settings);
-    addContentView(rangeCard, new LayoutParams
-        (LayoutParams.WRAP_CONTENT, LayoutParams.WRAP_CONTENT));
+    StartupTrace.endSection();
+    Intent intent = getIntent();
+    if (intent != null && intent.getIntExtra(EXTRA_BATCH, 0) > 0) {
+      batchSize = intent.getIntExtra(EXTRA_BATCH, 0);
+      batchDistances = new float[batchSize];
+      batchAccuracies = new float[batchSize];
+      batchInclinations = new int[batchSize];
+      batchTimestamps = new long[batchSize];
+      if (savedInstanceState != null) {
+        restoreBatch(savedInstanceState);
+      }
+      rangeCard.setBatchProgress(batchCaptured, batchSize);
+    }
+    if (RangeFinderPreferences.isUsingRenderThread(settings)) {
+      // The card stays in the layout for input and sizing, but draws itself
+      // on the surface behind it from a render thread.
+      RangeCardSurface surface = new RangeCardSurface(this, rangeCard);
+      rangeCard.setRenderSurface(surface);
+      FrameLayout frame = new FrameLayout(this);
+      frame.addView(surface, new LayoutParams
+          (LayoutParams.FILL_PARENT, LayoutParams.FILL_PARENT));
+      frame.addView(rangeCard, new LayoutParams
+          (LayoutParams.FILL_PARENT, LayoutParams.FILL_PARENT));
+      addContentView(frame, new LayoutParams
+          (LayoutParams.FILL_PARENT, LayoutParams.FILL_PARENT));
+    } else {
+      addContentView(rangeCard, new LayoutParams
+          (LayoutParams.WRAP_CONTENT, LayoutParams.WRAP_CONTENT));
+    }
+  }
+
+  /**
+   * Saves the red line and any batch captured so far, so the measurement
+   * carries on where it was if the process is killed meanwhile.
+   */
+  @Override
+  protected void onSaveInstanceState(Bundle outState) {
+    super.onSaveInstanceState(outState);
+    rangeCard.saveState(outState);
+    if (batchCaptured > 0) {
+      outState.putInt(STATE_BATCH_CAPTURED, batchCaptured);
+      outState.putFloatArray(STATE_BATCH_DISTANCES, batchDistances);
+      outState.putFloatArray(STATE_BATCH_ACCURACIES, batchAccuracies);
+      outState.putIntArray(STATE_BATCH_INCLINATIONS, batchInclinations);
+      outState.putLongArray(STATE_BATCH_TIMESTAMPS, batchTimestamps);
+    }
+  }
+
+  private void restoreBatch(Bundle state) {
+    int captured = state.getInt(STATE_BATCH_CAPTURED, 0);
+    float [] distances = state.getFloatArray(STATE_BATCH_DISTANCES);
+    float [] accuracies = state.getFloatArray(STATE_BATCH_ACCURACIES);
+    int [] inclinations = state.getIntArray(STATE_BATCH_INCLINATIONS);
+    long [] timestamps = state.getLongArray(STATE_BATCH_TIMESTAMPS);
+    if (captured <= 0 || captured > batchSize || distances == null
+        || distances.length != batchSize || accuracies == null
+        || inclinations == null || timestamps == null) {
+      return;
+    }
+    batchCaptured = captured;
+    batchDistances = distances;
+    batchAccuracies = accuracies;
+    batchInclinations = inclinations;
+    batchTimestamps = timestamps;
   }
 
+  @Override
+  public Object onRetainNonConfigurationInstance() {
+    return rangeCard.retainLayout();
+  }
 
   @Override
   public boolean onCreateOptionsMenu(Menu menu) {
     menu.add(Menu.NONE, PREFS, Menu.NONE, R.string.menu_preferences);
+    menu.add(Menu.NONE, PROFILES, Menu.NONE, R.string.menu_profiles);
     menu.add(Menu.NONE, HELP, Menu.NONE, R.string.menu_help);
+    menu.add(Menu.NONE, HISTORY, Menu.NONE, R.string.menu_history);
+    menu.add(Menu.NONE, EXPORT, Menu.NONE, R.string.menu_export);
+    menu.add(Menu.NONE, STATS, Menu.NONE, R.string.menu_show_stats);
+    menu.add(Menu.NONE, SAVE_STATS, Menu.NONE, R.string.menu_save_stats);
     menu.add(Menu.NONE, EXIT, Menu.NONE, R.string.menu_exit);
     return super.onCreateOptionsMenu(menu);
   }
 
+  @Override
+  public boolean onPrepareOptionsMenu(Menu menu) {
+    boolean shown = rangeCard.isStatsShown();
+    menu.findItem(STATS).setTitle(
+        shown ? R.string.menu_hide_stats : R.string.menu_show_stats);
+    menu.findItem(SAVE_STATS).setVisible(shown);
+    return super.onPrepareOptionsMenu(menu);
+  }
+
   @Override
   public boolean onOptionsItemSelected(MenuItem item) {
     switch (item.getItemId()) {
@@ -79,10 +225,30 @@ public class RangeFinder extends Activity {
         startActivity(new Intent(this, RangeFinderPreferences.class));
         return true;
 
+      case PROFILES:
+        showProfiles();
+        return true;
+
       case HELP:
         showHelp();
         return true;
 
+      case HISTORY:
+        startActivity(new Intent(this, HistoryBrowser.class));
+        return true;
+
+      case EXPORT:
+        exportJournal();
+        return true;
+
+      case STATS:
+        rangeCard.setStatsShown(!rangeCard.isStatsShown());
+        return true;
+
+      case SAVE_STATS:
+        saveFrameStats();
+        return true;
+
       case EXIT:
         finish();
         return true;
@@ -91,10 +257,120 @@ public class RangeFinder extends Activity {
     return super.onOptionsItemSelected(item);
   }
 
+  /**
+   * Called by the range card once its first frame is drawn, to do the
+   * startup work that doesn't have to hold that frame up.
+   */
+  void onFirstDraw() {
+    StartupTrace.firstDraw();
+    firstDrawn = true;
+    checkPreferencesOk();
+    final Context context = getApplicationContext();
+    background.execute(new Runnable() {
+      @Override
+      public void run() {
+        rangeCard.setJournal(getJournal(context));
+      }
+    });
+    precomputeProfiles();
+    // Parse the help page now, so opening it later is instant.
+    final int width = helpWidth;
+    background.execute(new Runnable() {
+      @Override
+      public void run() {
+        HelpText.get(context, width);
+      }
+    });
+  }
+
+  /**
+   * Solves the range card for every calibration profile in the background,
+   * so switching between them doesn't have to.
+   */
+  private void precomputeProfiles() {
+    final Map<String, Calibration> profiles =
+        RangeFinderPreferences.getProfiles(settings);
+    final boolean imperial = RangeFinderPreferences.isImperial(settings);
+    background.execute(new Runnable() {
+      @Override
+      public void run() {
+        for (Calibration c : profiles.values()) {
+          rangeCard.precompute(c.withImperial(imperial));
+        }
+      }
+    });
+  }
+
+  /**
+   * Lets the user switch to another calibration profile, or save the current
+   * calibration as one.
+   */
+  private void showProfiles() {
+    final String [] names = RangeFinderPreferences.getProfiles(settings)
+        .keySet().toArray(new String[0]);
+    String active = RangeFinderPreferences.getActiveProfile(settings);
+    int checked = -1;
+    for (int i = 0; i < names.length; i++) {
+      if (names[i].equals(active)) {
+        checked = i;
+      }
+    }
+    AlertDialog.Builder builder = new AlertDialog.Builder(this)
+        .setTitle(R.string.profiles_title);
+    if (names.length > 0) {
+      builder.setSingleChoiceItems(names, checked,
+          new DialogInterface.OnClickListener() {
+            @Override
+            public void onClick(DialogInterface dialog, int which) {
+              RangeFinderPreferences.switchProfile(settings, names[which]);
+              rangeCard.paramsUpdated(settings);
+              dialog.dismiss();
+            }
+          });
+    } else {
+      builder.setMessage(R.string.profiles_empty);
+    }
+    builder.setPositiveButton(R.string.profile_save,
+        new DialogInterface.OnClickListener() {
+          @Override
+          public void onClick(DialogInterface dialog, int which) {
+            promptProfileName();
+          }
+        });
+    if (checked >= 0) {
+      final String name = names[checked];
+      builder.setNeutralButton(R.string.profile_delete,
+          new DialogInterface.OnClickListener() {
+            @Override
+            public void onClick(DialogInterface dialog, int which) {
+              RangeFinderPreferences.deleteProfile(settings, name);
+            }
+          });
+    }
+    builder.show();
+  }
+
+  private void promptProfileName() {
+    final EditText nameText = new EditText(this);
+    nameText.setSingleLine(true);
+    new AlertDialog.Builder(this).setTitle(R.string.profile_name)
+        .setView(nameText)
+        .setPositiveButton(R.string.profile_save,
+            new DialogInterface.OnClickListener() {
+              @Override
+              public void onClick(DialogInterface dialog, int which) {
+                String name = nameText.getText().toString().trim();
+                if (name.length() > 0) {
+                  RangeFinderPreferences.saveProfile(settings, name);
+                  precomputeProfiles();
+                }
+              }
+            }).show();
+  }
+
   private synchronized void checkPreferencesOk() {
     if (prefdialog == null  // Seems necessary to avoid showing two dialogs.
-        && (RangeFinderPreferences.getArmValue(settings) == 0 
-            || RangeFinderPreferences.getEyeValue(settings) == 0)) {
+        && !RangeFinderPreferences.getCalibration(settings).isComplete()) {
       final RangeFinder thisObj = this;
       DialogInterface.OnClickListener dialogClickListener =
         new DialogInterface.OnClickListener() {
@@ -128,15 +404,207 @@ public class RangeFinder extends Activity {
   private void showHelp() {
     // TODO: It would be nice to make this dialog fill more of the screen,
     // at least to fill in the space where there would be a status bar.
-    final WebView webView = new WebView(this);
-    webView.loadUrl("file:///android_asset/help.html");
-    new AlertDialog.Builder(this).setView(webView)
+    TextView text = new TextView(this);
+    text.setPadding(HELP_PADDING, HELP_PADDING, HELP_PADDING, HELP_PADDING);
+    text.setText(HelpText.get(this, helpWidth));
+    ScrollView scroll = new ScrollView(this);
+    scroll.addView(text);
+    new AlertDialog.Builder(this).setView(scroll)
         .setTitle(R.string.help_title).show();
   }
 
+  /**
+   * @return the measurement journal shared by the whole process, or null if
+   *     it couldn't be opened
+   */
+  static synchronized MeasurementJournal getJournal(Context context) {
+    if (journal == null) {
+      try {
+        journal = new MeasurementJournal(
+            new File(context.getFilesDir(), JOURNAL_FILE), background);
+      } catch (IOException e) {
+        Log.w(TAG, "Couldn't open measurement journal", e);
+      }
+    }
+    return journal;
+  }
+
+  /** @return the measurement history shared by the whole process */
+  static synchronized MeasurementHistory getHistory(Context context) {
+    if (history == null) {
+      history = new MeasurementHistory(context);
+    }
+    return history;
+  }
+
+  /**
+   * Adds measurements that are being returned to the history, in the
+   * background.
+   */
+  private void addToHistory(final long [] timestamps,
+      final float [] distances, final float [] accuracies,
+      final int [] inclinations) {
+    final MeasurementHistory h = getHistory(getApplicationContext());
+    final String profile = RangeFinderPreferences.getActiveProfile(settings);
+    final boolean imperial = RangeFinderPreferences.isImperial(settings);
+    final Calibration calibration =
+        RangeFinderPreferences.getCalibration(settings);
+    background.execute(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          h.add(profile, imperial, timestamps, distances, accuracies,
+              inclinations, calibration.getEyeSeparationMeters(),
+              calibration.getArmLengthMeters());
+        } catch (RuntimeException e) {
+          // The history is for review only, never lose the result over it.
+          Log.w(TAG, "Couldn't add to measurement history", e);
+        }
+      }
+    });
+  }
+
+  /**
+   * Writes the journal out as CSV on external storage, in the background.
+   */
+  private void exportJournal() {
+    final File in = new File(getFilesDir(), JOURNAL_FILE);
+    final File out = new File(Environment.getExternalStorageDirectory(),
+        EXPORT_FILE);
+    background.execute(new Runnable() {
+      @Override
+      public void run() {
+        boolean exported = false;
+        try {
+          Writer writer = new BufferedWriter(new FileWriter(out));
+          try {
+            MeasurementJournal.exportCsv(in, writer);
+            exported = true;
+          } finally {
+            writer.close();
+          }
+        } catch (IOException e) {
+          Log.w(TAG, "Couldn't export measurement journal", e);
+        }
+        final String message = exported
+            ? getString(R.string.export_done, out.getPath())
+            : getString(R.string.export_failed);
+        runOnUiThread(new Runnable() {
+          @Override
+          public void run() {
+            Toast.makeText(RangeFinder.this, message, Toast.LENGTH_LONG)
+                .show();
+          }
+        });
+      }
+    });
+  }
+
+  /**
+   * Writes the range card's performance counters to external storage, in
+   * the background.
+   */
+  private void saveFrameStats() {
+    final FrameStats stats = rangeCard.getFrameStats();
+    final File out = new File(Environment.getExternalStorageDirectory(),
+        STATS_FILE);
+    final String device = Build.MANUFACTURER + " " + Build.MODEL + " API "
+        + Build.VERSION.SDK;
+    background.execute(new Runnable() {
+      @Override
+      public void run() {
+        boolean saved = false;
+        try {
+          Writer writer = new BufferedWriter(new FileWriter(out));
+          try {
+            stats.writeTo(writer, device);
+            saved = true;
+          } finally {
+            writer.close();
+          }
+        } catch (IOException e) {
+          Log.w(TAG, "Couldn't save frame stats", e);
+        }
+        final String message = saved
+            ? getString(R.string.stats_saved, out.getPath())
+            : getString(R.string.stats_save_failed);
+        runOnUiThread(new Runnable() {
+          @Override
+          public void run() {
+            Toast.makeText(RangeFinder.this, message, Toast.LENGTH_LONG)
+                .show();
+          }
+        });
+      }
+    });
+  }
+
+  /**
+   * Called when the user presses done on the range card.  Either returns the
+   * measurement, or adds it to the batch and finishes once that is full.
+   */
+  void onDone() {
+    if (isFinishing()) {
+      return;
+    }
+    if (batchSize == 0 || !rangeCard.solveUserDist()) {
+      finish();
+      return;
+    }
+    rangeCard.appendToJournal(MeasurementJournal.KIND_COMMIT);
+    batchDistances[batchCaptured] = rangeCard.getUserDistance();
+    batchAccuracies[batchCaptured] = rangeCard.getUserDistanceAccuracy();
+    batchInclinations[batchCaptured] = 
+        rangeCard.getInclinationAtLastAdjustment();
+    batchTimestamps[batchCaptured] = System.currentTimeMillis();
+    batchCaptured++;
+    rangeCard.setBatchProgress(batchCaptured, batchSize);
+    if (batchCaptured == batchSize) {
+      finish();
+    }
+  }
+
+  /**
+   * Returns the measurements captured so far, missing inclinations are
+   * RangeCard.NO_MEASUREMENT.
+   */
+  private void finishBatch() {
+    if (batchCaptured == 0) {
+      setResult(RESULT_CANCELED);
+      return;
+    }
+    int n = batchCaptured;
+    float [] distances = new float[n];
+    float [] accuracies = new float[n];
+    int [] inclinations = new int[n];
+    long [] timestamps = new long[n];
+    System.arraycopy(batchDistances, 0, distances, 0, n);
+    System.arraycopy(batchAccuracies, 0, accuracies, 0, n);
+    System.arraycopy(batchInclinations, 0, inclinations, 0, n);
+    System.arraycopy(batchTimestamps, 0, timestamps, 0, n);
+    Intent data = new Intent();
+    data.putExtra("distances", distances);
+    data.putExtra("accuracies", accuracies);
+    data.putExtra("inclinations", inclinations);
+    data.putExtra("timestamps", timestamps);
+    addToHistory(timestamps, distances, accuracies, inclinations);
+    if (RangeFinderPreferences.isImperial(settings)) { 
+      data.putExtra("units", "feet");
+    } else {
+      data.putExtra("units", "meters");
+    }
+    setResult(RESULT_OK, data);
+  }
+
   @Override
   public void finish() {
-    if (rangeCard.solveUserDist()) {
+    if (isFinishing()) {
+      return;  // The result was already set and recorded.
+    }
+    if (batchSize > 0) {
+      finishBatch();
+    } else if (rangeCard.solveUserDist()) {
+      rangeCard.appendToJournal(MeasurementJournal.KIND_COMMIT);
       Intent data = new Intent();
       data.putExtra("distance", rangeCard.getUserDistance());
       data.putExtra("accuracy", rangeCard.getUserDistanceAccuracy());
@@ -151,16 +619,38 @@ public class RangeFinder extends Activity {
             rangeCard.getInclinationAtLastAdjustment());
       }
       setResult(RESULT_OK, data);
+      addToHistory(new long[] {System.currentTimeMillis()},
+          new float[] {rangeCard.getUserDistance()},
+          new float[] {rangeCard.getUserDistanceAccuracy()},
+          new int[] {rangeCard.getInclinationAtLastAdjustment()});
     } else {
       setResult(RESULT_CANCELED);
     }
     super.finish();
   }
 
+  @Override
+  public void onPause() {
+    super.onPause();
+    rangeCard.onPause();
+    final MeasurementJournal j = journal;
+    if (j != null) {
+      background.execute(new Runnable() {
+        @Override
+        public void run() {
+          j.flush();
+        }
+      });
+    }
+  }
+
   @Override
   public void onResume() {
     super.onResume();
-    checkPreferencesOk();
+    if (firstDrawn) {
+      checkPreferencesOk();
+    }
     rangeCard.paramsUpdated(settings);
+    rangeCard.onResume();
   }
 }
\ No newline at end of file
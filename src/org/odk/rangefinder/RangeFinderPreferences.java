@@ -20,6 +20,7 @@ package org.odk.rangefinder;
 import android.content.SharedPreferences;
 import android.content.SharedPreferences.OnSharedPreferenceChangeListener;
 import android.os.Bundle;
+import android.preference.CheckBoxPreference;
 import android.preference.EditTextPreference;
 import android.preference.ListPreference;
 import android.preference.PreferenceActivity;
@@ -28,6 +29,10 @@ import android.text.InputType;
 
 import java.text.DecimalFormat;
 import java.text.NumberFormat;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Preference settings for Range Finder, handle arm length and eye separation
@@ -45,14 +50,39 @@ public class RangeFinderPreferences extends PreferenceActivity
   private EditTextPreference eye_metric;
   private EditTextPreference arm_imperial;
   private EditTextPreference eye_imperial;
+  private CheckBoxPreference journal_adjustments;
+  private CheckBoxPreference render_thread;
+  private CheckBoxPreference touch_prediction;
   
   public static final String UNITS = "units";
   public static final String EYE_SEPARATION_METRIC = "eye_separation_metric";
   public static final String ARM_LENGTH_METRIC = "arm_length_metric";
   public static final String EYE_SEPARATION_IMP = "eye_separation_imperial";
   public static final String ARM_LENGTH_IMP = "arm_length_imperial";
+  public static final String JOURNAL_ADJUSTMENTS = "journal_adjustments";
+  public static final String RENDER_THREAD = "render_thread";
+  public static final String TOUCH_PREDICTION = "touch_prediction";
+  // The calibration in meters, kept in sync with the strings above.
+  public static final String EYE_SEPARATION_METERS = "eye_separation_meters";
+  public static final String ARM_LENGTH_METERS = "arm_length_meters";
+  // Named calibrations: the names one per line, and the values in meters
+  // under keys starting with PROFILE_PREFIX.  The active profile's values
+  // are also in the keys above.
+  public static final String PROFILES = "profiles";
+  public static final String ACTIVE_PROFILE = "active_profile";
+  private static final String PROFILE_PREFIX = "profile.";
   
-  public static final float CM_PER_INCH = 2.54f;
+  public static final float CM_PER_INCH = Calibration.CM_PER_INCH;
+
+  private static volatile Calibration calibration;
+  // Profile name to calibration, in metric, replaced as a whole on changes.
+  private static volatile Map<String, Calibration> profiles;
+  private static volatile String activeProfile;
+  // The values last written to the strings this screen edits, by key, set
+  // just before writing so the listener can tell our own writes from the
+  // user's edits.  Each is cleared when the listener sees another value.
+  private static final Map<String, String> ownWrites =
+      new ConcurrentHashMap<String, String>();
   
   NumberFormat numberFormat1 = new DecimalFormat("0.#");
   NumberFormat numberFormat2 = new DecimalFormat("0.##");
@@ -112,63 +142,182 @@ public class RangeFinderPreferences extends PreferenceActivity
     eye_imperial.setTitle(R.string.eye_separation);
     eye_imperial.getEditText().setHint(R.string.inch_abbr);
     
+    journal_adjustments = new CheckBoxPreference(this);
+    journal_adjustments.setKey(JOURNAL_ADJUSTMENTS);
+    journal_adjustments.setTitle(R.string.journal_adjustments);
+    journal_adjustments.setSummary(R.string.journal_adjustments_summary);
+    // Keep it below the unit specific settings that handleUnits re-adds.
+    journal_adjustments.setOrder(100);
+    preferenceScreen.addPreference(journal_adjustments);
+    
+    render_thread = new CheckBoxPreference(this);
+    render_thread.setKey(RENDER_THREAD);
+    render_thread.setTitle(R.string.render_thread);
+    render_thread.setSummary(R.string.render_thread_summary);
+    render_thread.setOrder(101);
+    preferenceScreen.addPreference(render_thread);
+    
+    touch_prediction = new CheckBoxPreference(this);
+    touch_prediction.setKey(TOUCH_PREDICTION);
+    touch_prediction.setTitle(R.string.touch_prediction);
+    touch_prediction.setSummary(R.string.touch_prediction_summary);
+    touch_prediction.setOrder(102);
+    preferenceScreen.addPreference(touch_prediction);
+    
     handleUnits();
   }
 
   // The following static functions are some utils to interpret the values of
-  // what's saved in the preferences.
+  // what's saved in the preferences.  They all read from one in-memory
+  // Calibration snapshot, which is only parsed from the preferences once per
+  // process and is replaced as a whole when the user edits it.
+  public static Calibration getCalibration(SharedPreferences p) {
+    Calibration c = calibration;
+    if (c == null) {
+      c = loadCalibration(p);
+      calibration = c;
+    }
+    return c;
+  }
+
+  private static Calibration loadCalibration(SharedPreferences p) {
+    boolean imperial = p.getString(UNITS, "metric").equals("imperial");
+    if (p.contains(EYE_SEPARATION_METERS) && p.contains(ARM_LENGTH_METERS)) {
+      return new Calibration(imperial, p.getFloat(EYE_SEPARATION_METERS, 0),
+          p.getFloat(ARM_LENGTH_METERS, 0));
+    }
+    // Only the strings the preference screen edits were saved so far.
+    String eyeKey = imperial ? EYE_SEPARATION_IMP : EYE_SEPARATION_METRIC;
+    String armKey = imperial ? ARM_LENGTH_IMP : ARM_LENGTH_METRIC;
+    return Calibration.parse(imperial, p.getString(eyeKey, "0"),
+        p.getString(armKey, "0"));
+  }
+
+  private static float parseValue(SharedPreferences p, String key) {
+    return Calibration.parseValue(p.getString(key, "0"));
+  }
+
+  /**
+   * @return the saved calibration profiles by name, in the order they were
+   *     added.  Their units are always metric, use the current units.
+   */
+  public static Map<String, Calibration> getProfiles(SharedPreferences p) {
+    Map<String, Calibration> m = profiles;
+    if (m == null) {
+      m = loadProfiles(p);
+      profiles = m;
+    }
+    return m;
+  }
+
+  private static Map<String, Calibration> loadProfiles(SharedPreferences p) {
+    Map<String, Calibration> m = new LinkedHashMap<String, Calibration>();
+    for (String name : p.getString(PROFILES, "").split("\n")) {
+      if (name.length() > 0) {
+        m.put(name, new Calibration(false,
+            p.getFloat(PROFILE_PREFIX + name + "." + EYE_SEPARATION_METERS, 0),
+            p.getFloat(PROFILE_PREFIX + name + "." + ARM_LENGTH_METERS, 0)));
+      }
+    }
+    activeProfile = p.getString(ACTIVE_PROFILE, null);
+    return Collections.unmodifiableMap(m);
+  }
+
+  /** @return the name of the profile in use, or null if there isn't one */
+  public static String getActiveProfile(SharedPreferences p) {
+    getProfiles(p);
+    return activeProfile;
+  }
+
+  /**
+   * Makes a profile's calibration the current one.  Takes effect right away,
+   * the preferences file is written in the background.
+   */
+  public static void switchProfile(SharedPreferences p, String name) {
+    Calibration profile = getProfiles(p).get(name);
+    if (profile == null) {
+      return;
+    }
+    Calibration c = profile.withImperial(getCalibration(p).isImperial());
+    calibration = c;
+    activeProfile = name;
+    persist(p, c, true);
+  }
+
+  /**
+   * Saves the current calibration as a profile with the given name, replacing
+   * any with that name, and makes it the active one.
+   */
+  public static void saveProfile(SharedPreferences p, String name) {
+    Map<String, Calibration> m =
+        new LinkedHashMap<String, Calibration>(getProfiles(p));
+    m.put(name, getCalibration(p).withImperial(false));
+    profiles = Collections.unmodifiableMap(m);
+    activeProfile = name;
+    persist(p, getCalibration(p), false);
+  }
+
+  /**
+   * Removes a profile.  The current calibration stays as it is.
+   */
+  public static void deleteProfile(SharedPreferences p, final String name) {
+    Map<String, Calibration> m =
+        new LinkedHashMap<String, Calibration>(getProfiles(p));
+    m.remove(name);
+    profiles = Collections.unmodifiableMap(m);
+    if (name.equals(activeProfile)) {
+      activeProfile = null;
+    }
+    persist(p, getCalibration(p), false);
+    final SharedPreferences prefs = p;
+    RangeFinder.background.execute(new Runnable() {
+      @Override
+      public void run() {
+        prefs.edit()
+            .remove(PROFILE_PREFIX + name + "." + EYE_SEPARATION_METERS)
+            .remove(PROFILE_PREFIX + name + "." + ARM_LENGTH_METERS)
+            .commit();
+      }
+    });
+  }
+
   public static boolean isImperial(SharedPreferences p) {
-    return p.getString(UNITS, "metric").equals("imperial");
+    return getCalibration(p).isImperial();
+  }
+  
+  public static boolean isJournalingAdjustments(SharedPreferences p) {
+    return p.getBoolean(JOURNAL_ADJUSTMENTS, false);
+  }
+  
+  public static boolean isUsingRenderThread(SharedPreferences p) {
+    return p.getBoolean(RENDER_THREAD, false);
+  }
+  
+  public static boolean isPredictingTouch(SharedPreferences p) {
+    return p.getBoolean(TOUCH_PREDICTION, false);
   }
   
   public static float getEyeValue(SharedPreferences p) {
-    try {
-      if (isImperial(p)) {
-        return Float.parseFloat(p.getString(EYE_SEPARATION_IMP, "0"));
-      } else {
-        return Float.parseFloat(p.getString(EYE_SEPARATION_METRIC, "0"));
-      }
-    } catch (NumberFormatException e) {
-      return 0;
-    } 
+    return getCalibration(p).getEyeValue();
   }
   
   public static float getArmValue(SharedPreferences p) {
-    try {
-      if (isImperial(p)) {
-        return Float.parseFloat(p.getString(ARM_LENGTH_IMP, "0"));
-      } else {
-        return Float.parseFloat(p.getString(ARM_LENGTH_METRIC, "0"));
-      }
-    } catch (NumberFormatException e) {
-      return 0;
-    } 
+    return getCalibration(p).getArmValue();
   }
   
   public static float getEyeValueMeters(SharedPreferences p) {
-    float d = getEyeValue(p);
-    if (isImperial(p)) {
-      d = d * CM_PER_INCH / 100; // inch to m
-    } else {
-      d = d / 100; // cm to m
-    }
-    return d;
+    return getCalibration(p).getEyeSeparationMeters();
   }
   
   public static float getArmValueMeters(SharedPreferences p) {
-    float d = getArmValue(p);
-    if (isImperial(p)) {
-      d = d * CM_PER_INCH / 100;  // inch to m
-    } else {
-      d = d / 100;  // cm to m
-    }
-    return d; 
+    return getCalibration(p).getArmLengthMeters();
   }
   
   private void handleUnits() {
-    float armVal = getArmValue(settings);
-    float eyeVal = getEyeValue(settings);
-    if (isImperial(settings)) {
+    Calibration c = getCalibration(settings);
+    float armVal = c.getArmValue();
+    float eyeVal = c.getEyeValue();
+    if (c.isImperial()) {
       units.setSummary(R.string.units_imperial);
       preferenceScreen.removePreference(arm_metric);
       preferenceScreen.addPreference(arm_imperial);
@@ -209,47 +358,109 @@ public class RangeFinderPreferences extends PreferenceActivity
   
   public void onSharedPreferenceChanged(SharedPreferences sharedPreferences,
       String key) {
-    // Always keep metric/imperial in sync, but keep reasonable precision
-    // numbers on conversion so UI doesn't look so ugly.
-    // Also only update corresponding setting only for the current mode,
-    // otherwise there's an infinite loop of calling onSharedPreferenceChanged.
-    if (key.equals(EYE_SEPARATION_IMP) && isImperial(settings)) {
-      SharedPreferences.Editor edit = settings.edit();
-      float v = getEyeValue(settings) * CM_PER_INCH;
-      if (v != 0) {
-        edit.putString(EYE_SEPARATION_METRIC, numberFormat1.format(v));
-      } else {
-        edit.putString(EYE_SEPARATION_METRIC, "");
+    // Only react to what the user edits on this screen, i.e. the units and
+    // the values for the current units.  The rest are our own background
+    // writes, which may be reported on the background thread.
+    String own = ownWrites.get(key);
+    if (own != null) {
+      if (own.equals(settings.getString(key, null))) {
+        return;
       }
-      edit.commit();
-    } else if (key.equals(EYE_SEPARATION_METRIC) && !isImperial(settings)) {
-      SharedPreferences.Editor edit = settings.edit();
-      float v = getEyeValue(settings) / CM_PER_INCH;
-      if (v != 0) {
-        edit.putString(EYE_SEPARATION_IMP, numberFormat2.format(v));
-      } else {
-        edit.putString(EYE_SEPARATION_IMP, "");
-      }
-      edit.commit();
-    } else if (key.equals(ARM_LENGTH_IMP) && isImperial(settings)) {
-      SharedPreferences.Editor edit = settings.edit();
-      float v = getArmValue(settings) * CM_PER_INCH;
-      if (v != 0) {
-        edit.putString(ARM_LENGTH_METRIC, numberFormat1.format(v));
-      } else {
-        edit.putString(ARM_LENGTH_METRIC, "");
-      }
-      edit.commit();
-    } else if (key.equals(ARM_LENGTH_METRIC) && !isImperial(settings)) {
-      SharedPreferences.Editor edit = settings.edit();
-      float v = getArmValue(settings) / CM_PER_INCH;
-      if (v != 0) {
-        edit.putString(ARM_LENGTH_IMP, numberFormat2.format(v));
-      } else {
-        edit.putString(ARM_LENGTH_IMP, "");
+      ownWrites.remove(key);
+    }
+    Calibration old = getCalibration(settings);
+    Calibration updated;
+    if (key.equals(UNITS)) {
+      updated = old.withImperial(
+          settings.getString(UNITS, "metric").equals("imperial"));
+    } else if (key.equals(old.isImperial() ? EYE_SEPARATION_IMP
+        : EYE_SEPARATION_METRIC)) {
+      updated = old.withEyeSeparationMeters(Calibration.toMeters(
+          parseValue(settings, key), old.isImperial()));
+    } else if (key.equals(old.isImperial() ? ARM_LENGTH_IMP
+        : ARM_LENGTH_METRIC)) {
+      updated = old.withArmLengthMeters(Calibration.toMeters(
+          parseValue(settings, key), old.isImperial()));
+    } else {
+      return;
+    }
+    calibration = updated;
+    if (!key.equals(UNITS)) {
+      // Edits go to the profile in use too.
+      String name = getActiveProfile(settings);
+      if (name != null) {
+        Map<String, Calibration> m =
+            new LinkedHashMap<String, Calibration>(getProfiles(settings));
+        m.put(name, updated.withImperial(false));
+        profiles = Collections.unmodifiableMap(m);
       }
-      edit.commit();
+      persist(settings, updated, false);
     }
     handleUnits();
   }
+
+  /**
+   * Saves the calibration in meters, and also as a string in the other units
+   * so the preference screen shows it when switching, along with the
+   * profiles.  The file is written on the background executor so the UI
+   * thread doesn't wait on the disk.
+   * @param replaced true if the values shown for the current units should be
+   *     replaced too, i.e. they weren't what the user just typed
+   */
+  private static void persist(final SharedPreferences p, final Calibration c,
+      final boolean replaced) {
+    final Map<String, Calibration> m = getProfiles(p);
+    final String active = activeProfile;
+    RangeFinder.background.execute(new Runnable() {
+      @Override
+      public void run() {
+        SharedPreferences.Editor edit = p.edit();
+        edit.putFloat(EYE_SEPARATION_METERS, c.getEyeSeparationMeters());
+        edit.putFloat(ARM_LENGTH_METERS, c.getArmLengthMeters());
+        // Always keep metric/imperial in sync, but keep reasonable precision
+        // numbers on conversion so UI doesn't look so ugly.
+        putValues(edit, c, !c.isImperial(),
+            new DecimalFormat(c.isImperial() ? "0.#" : "0.##"));
+        if (replaced) {
+          putValues(edit, c, c.isImperial(), new DecimalFormat("0.##"));
+        }
+        StringBuilder names = new StringBuilder();
+        for (Map.Entry<String, Calibration> e : m.entrySet()) {
+          String prefix = PROFILE_PREFIX + e.getKey() + ".";
+          edit.putFloat(prefix + EYE_SEPARATION_METERS,
+              e.getValue().getEyeSeparationMeters());
+          edit.putFloat(prefix + ARM_LENGTH_METERS,
+              e.getValue().getArmLengthMeters());
+          names.append(e.getKey()).append('\n');
+        }
+        edit.putString(PROFILES, names.toString());
+        if (active != null) {
+          edit.putString(ACTIVE_PROFILE, active);
+        } else {
+          edit.remove(ACTIVE_PROFILE);
+        }
+        edit.commit();
+      }
+    });
+  }
+
+  private static void putValues(SharedPreferences.Editor edit, Calibration c,
+      boolean imperial, NumberFormat format) {
+    float eye = Calibration.fromMeters(c.getEyeSeparationMeters(), imperial);
+    float arm = Calibration.fromMeters(c.getArmLengthMeters(), imperial);
+    putOwnString(edit, imperial ? EYE_SEPARATION_IMP : EYE_SEPARATION_METRIC,
+        eye != 0 ? format.format(eye) : "");
+    putOwnString(edit, imperial ? ARM_LENGTH_IMP : ARM_LENGTH_METRIC,
+        arm != 0 ? format.format(arm) : "");
+  }
+
+  /**
+   * Writes a string the preference screen edits, marked as our own so the
+   * listener doesn't take it for the user's edit.
+   */
+  private static void putOwnString(SharedPreferences.Editor edit, String key,
+      String value) {
+    ownWrites.put(key, value);
+    edit.putString(key, value);
+  }
 }
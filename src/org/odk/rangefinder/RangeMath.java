@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package org.odk.rangefinder;
+
+/**
+ * The stereo disparity math behind the range card, with no Android
+ * dependencies so it can also be used to reprocess stored measurements on a
+ * server.
+ * <p>
+ * With arm length A and eye separation E, an object at distance D appears
+ * displaced by X = E*(D-A)/D between the two eyes.  Solving for D gives
+ * D = EA/(E-X).  Displacement can't be more than E, and distance can't be
+ * less than A.  All lengths are in meters.
+ * <p>
+ * The batch methods take primitive arrays with offsets, write into caller
+ * supplied output arrays and never allocate.
+ */
+public final class RangeMath {
+
+  public static final float INCHES_PER_METER = 39.3700787f;
+  public static final float METERS_PER_FOOT = 0.3048f;
+
+  /**
+   * Displacement used to estimate accuracy, 1/4 mm.  This is about around 2
+   * pixels on normal dpi range devices.
+   */
+  public static final float ACCURACY_DELTA = 0.00025f;
+
+  /** Accuracy reported when the displacement is at or past infinity. */
+  public static final float INFINITE = -1;
+
+  private RangeMath() {
+  }
+
+  /** @return dots per meter for the given dots per inch */
+  public static float dotsPerMeter(float dpi) {
+    return dpi * INCHES_PER_METER;
+  }
+
+  /** @return the distance D = EA/(E-X) */
+  public static float distance(float eyesep, float armlength,
+      float displacement) {
+    return eyesep * armlength / (eyesep - displacement);
+  }
+
+  /** @return the displacement X = E*(D-A)/D */
+  public static float displacement(float eyesep, float armlength,
+      float distance) {
+    return eyesep * (distance - armlength) / distance;
+  }
+
+  /**
+   * Estimates the accuracy of the distance at the given displacement.  Goes
+   * {@link #ACCURACY_DELTA} on either side of it and averages the difference.
+   * This could still be something smarter...
+   * @return accuracy in meters, capped at 100% error, or {@link #INFINITE}
+   */
+  public static float accuracy(float eyesep, float armlength,
+      float displacement) {
+    if (displacement >= eyesep) {
+      return INFINITE;
+    }
+    float dist = distance(eyesep, armlength, displacement);
+    float acc1 = distance(eyesep, armlength, displacement + ACCURACY_DELTA)
+        - dist;
+    float acc2 = dist
+        - distance(eyesep, armlength, displacement - ACCURACY_DELTA);
+    float acc = (acc1 + acc2) / 2;
+    // Accuracy could be as bad as infinity, which isn't very useful, so cap
+    // it at 100% error.  Negative means some kind of error, so cap that too.
+    if (acc > dist || acc < 0) {
+      acc = dist;
+    }
+    return acc;
+  }
+
+  /**
+   * Solves len pixel offsets, as measured on a display with the given dots
+   * per meter.
+   * @param accuracies receives accuracies as from {@link #accuracy}, may be
+   *     null if not needed
+   */
+  public static void solvePixels(float [] pixels, int off, int len,
+      float xdpm, float eyesep, float armlength,
+      float [] distances, float [] accuracies, int outOff) {
+    for (int i = 0; i < len; i++) {
+      float disp = pixels[off + i] / xdpm;
+      distances[outOff + i] = distance(eyesep, armlength, disp);
+      if (accuracies != null) {
+        accuracies[outOff + i] = accuracy(eyesep, armlength, disp);
+      }
+    }
+  }
+
+  /**
+   * Solves len displacements, in meters.
+   * @param accuracies receives accuracies as from {@link #accuracy}, may be
+   *     null if not needed
+   */
+  public static void solveDisplacements(float [] displacements, int off,
+      int len, float eyesep, float armlength,
+      float [] distances, float [] accuracies, int outOff) {
+    for (int i = 0; i < len; i++) {
+      float disp = displacements[off + i];
+      distances[outOff + i] = distance(eyesep, armlength, disp);
+      if (accuracies != null) {
+        accuracies[outOff + i] = accuracy(eyesep, armlength, disp);
+      }
+    }
+  }
+
+  /**
+   * Recovers the pixel offsets that produced len stored distances.  Together
+   * with {@link #solvePixels} this re-solves old measurements after a
+   * device's dpi or a user's calibration turns out to be wrong.
+   */
+  public static void pixelsForDistances(float [] distances, int off, int len,
+      float xdpm, float eyesep, float armlength,
+      float [] pixels, int outOff) {
+    for (int i = 0; i < len; i++) {
+      pixels[outOff + i] =
+          displacement(eyesep, armlength, distances[off + i]) * xdpm;
+    }
+  }
+}
@@ -0,0 +1,223 @@
+/*
+ * Copyright (C) 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package org.odk.rangefinder;
+
+import android.content.ContentProvider;
+import android.content.ContentValues;
+import android.content.SharedPreferences;
+import android.content.UriMatcher;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.net.Uri;
+import android.util.DisplayMetrics;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Read-only provider that lets other apps compute range tables without
+ * starting the range card, e.g. to print cards or check submitted values.
+ * Each query returns a whole table:
+ * <ul>
+ * <li>content://org.odk.rangefinder.ranges/table has a row per pixel column
+ *     with the pixel, distance and accuracy, in meters.
+ * <li>content://org.odk.rangefinder.ranges/ticks has a row per 1, 2, 5, 10...
+ *     distance that falls on the card, with the distance in the given units
+ *     and its pixel offset.
+ * </ul>
+ * Both take the query parameters xdpi, eye and arm (meters) and width
+ * (pixels, at most {@link #MAX_WIDTH}), and ticks also takes units (metric
+ * or imperial).  Any that are left out default to this device's display and
+ * the user's calibration, so callers need {@link #READ_PERMISSION}.  Solved
+ * tables are cached per parameters.
+ */
+public class RangeProvider extends ContentProvider {
+
+  public static final String AUTHORITY = "org.odk.rangefinder.ranges";
+  public static final Uri TABLE_URI =
+      Uri.parse("content://" + AUTHORITY + "/table");
+  public static final Uri TICKS_URI =
+      Uri.parse("content://" + AUTHORITY + "/ticks");
+
+  public static final String PARAM_XDPI = "xdpi";
+  public static final String PARAM_EYE = "eye";
+  public static final String PARAM_ARM = "arm";
+  public static final String PARAM_WIDTH = "width";
+  public static final String PARAM_UNITS = "units";
+
+  /** Needed to query, since results reveal the user's calibration. */
+  public static final String READ_PERMISSION =
+      "org.odk.rangefinder.permission.READ_RANGES";
+  /**
+   * Widest card a table is solved for, in pixels.  Wider than any screen,
+   * and small enough that the cached tables stay well within the heap.
+   */
+  public static final int MAX_WIDTH = 4096;
+
+  public static final String PIXEL = "pixel";
+  public static final String DISTANCE = "distance";
+  public static final String ACCURACY = "accuracy";
+  public static final String UNITS = "units";
+
+  private static final String [] TABLE_COLUMNS = {PIXEL, DISTANCE, ACCURACY};
+  private static final String [] TICK_COLUMNS = {DISTANCE, PIXEL, UNITS};
+  private static final int TABLE = 1;
+  private static final int TICKS = 2;
+  private static final int CACHE_SIZE = 8;
+
+  private static final UriMatcher matcher = new UriMatcher(UriMatcher.NO_MATCH);
+  static {
+    matcher.addURI(AUTHORITY, "table", TABLE);
+    matcher.addURI(AUTHORITY, "ticks", TICKS);
+  }
+
+  // Least recently used solved tables, distances then accuracies.
+  private final Map<String, float [][]> cache =
+      new LinkedHashMap<String, float [][]>(CACHE_SIZE, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(
+            Map.Entry<String, float [][]> eldest) {
+          return size() > CACHE_SIZE;
+        }
+      };
+
+  @Override
+  public boolean onCreate() {
+    return true;
+  }
+
+  @Override
+  public Cursor query(Uri uri, String [] projection, String selection,
+      String [] selectionArgs, String sortOrder) {
+    int match = matcher.match(uri);
+    if (match != TABLE && match != TICKS) {
+      throw new IllegalArgumentException("Unknown URI " + uri);
+    }
+    DisplayMetrics metrics = getContext().getResources().getDisplayMetrics();
+    SharedPreferences settings =
+        getContext().getSharedPreferences(RangeFinder.PREFS_NAME, 0);
+    Calibration calibration = RangeFinderPreferences.getCalibration(settings);
+    float xdpi = getParam(uri, PARAM_XDPI, metrics.xdpi);
+    float eyesep = getParam(uri, PARAM_EYE,
+        calibration.getEyeSeparationMeters());
+    float armlength = getParam(uri, PARAM_ARM,
+        calibration.getArmLengthMeters());
+    if (!(xdpi > 0 && eyesep > 0 && armlength > 0)
+        || Float.isInfinite(xdpi + eyesep + armlength)) {
+      throw new IllegalArgumentException(
+          "xdpi, eye and arm must be positive");
+    }
+    float xdpm = RangeMath.dotsPerMeter(xdpi);
+
+    // Checked before it is an int, which would wrap or saturate.
+    float widthParam = getParam(uri, PARAM_WIDTH, metrics.widthPixels);
+    if (!(widthParam >= 1 && widthParam <= MAX_WIDTH)) {
+      throw new IllegalArgumentException("width must be from 1 to "
+          + MAX_WIDTH);
+    }
+    int width = (int) widthParam;
+
+    if (match == TICKS) {
+      boolean imperial = "imperial".equals(uri.getQueryParameter(PARAM_UNITS));
+      float [] dists = TickLayout.distances(xdpm, eyesep, armlength, imperial,
+          width);
+      String units = imperial ? "feet" : "meters";
+      MatrixCursor cursor = new MatrixCursor(TICK_COLUMNS, dists.length);
+      for (float d : dists) {
+        cursor.addRow(new Object[] {d,
+            TickLayout.pixelFor(d, xdpm, eyesep, armlength, imperial), units});
+      }
+      return cursor;
+    }
+
+    float [][] table = getTable(xdpm, eyesep, armlength, width);
+    float [] distances = table[0];
+    float [] accuracies = table[1];
+    MatrixCursor cursor = new MatrixCursor(TABLE_COLUMNS, distances.length);
+    for (int p = 0; p < distances.length; p++) {
+      cursor.addRow(new Object[] {p, distances[p], accuracies[p]});
+    }
+    return cursor;
+  }
+
+  /**
+   * @return distances and accuracies for pixels 0 to width inclusive, solved
+   *     once per set of parameters
+   */
+  private float [][] getTable(float xdpm, float eyesep, float armlength,
+      int width) {
+    String key = xdpm + ":" + eyesep + ":" + armlength + ":" + width;
+    synchronized (cache) {
+      float [][] table = cache.get(key);
+      if (table != null) {
+        return table;
+      }
+    }
+    float [] pixels = new float[width + 1];
+    for (int p = 0; p <= width; p++) {
+      pixels[p] = p;
+    }
+    float [][] table = new float[2][width + 1];
+    RangeMath.solvePixels(pixels, 0, pixels.length, xdpm, eyesep, armlength,
+        table[0], table[1], 0);
+    synchronized (cache) {
+      cache.put(key, table);
+    }
+    return table;
+  }
+
+  private static float getParam(Uri uri, String name, float defaultValue) {
+    String value = uri.getQueryParameter(name);
+    if (value == null) {
+      return defaultValue;
+    }
+    try {
+      return Float.parseFloat(value);
+    } catch (NumberFormatException e) {
+      throw new IllegalArgumentException("Bad " + name + ": " + value);
+    }
+  }
+
+  @Override
+  public String getType(Uri uri) {
+    switch (matcher.match(uri)) {
+      case TABLE:
+        return "vnd.android.cursor.dir/vnd.org.odk.rangefinder.range";
+      case TICKS:
+        return "vnd.android.cursor.dir/vnd.org.odk.rangefinder.tick";
+      default:
+        return null;
+    }
+  }
+
+  @Override
+  public Uri insert(Uri uri, ContentValues values) {
+    throw new UnsupportedOperationException("Range tables are read-only");
+  }
+
+  @Override
+  public int delete(Uri uri, String selection, String [] selectionArgs) {
+    throw new UnsupportedOperationException("Range tables are read-only");
+  }
+
+  @Override
+  public int update(Uri uri, ContentValues values, String selection,
+      String [] selectionArgs) {
+    throw new UnsupportedOperationException("Range tables are read-only");
+  }
+}
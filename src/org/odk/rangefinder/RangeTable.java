@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package org.odk.rangefinder;
+
+/**
+ * Distance, accuracy and display label for every pixel column of the range
+ * card, so moving the red line is just an array lookup.  A table is only good
+ * for the parameters it was built with, see {@link #matches}.
+ */
+public final class RangeTable {
+
+  private final int columns;
+  private final float xdpm;
+  private final float eyesep;
+  private final float armlength;
+  private final boolean imperial;
+
+  private final float [] distances;
+  private final float [] accuracies;
+  private final String [] labels;
+
+  /**
+   * Solves every pixel column from 0 to lastPixel inclusive.
+   * @param xdpm dots per meter, in x dimension
+   * @param eyesep eye separation, meters
+   * @param armlength arm length, meters
+   */
+  public RangeTable(int lastPixel, float xdpm, float eyesep, float armlength,
+      boolean imperial, LabelFormatter formatter, String meterAbbr,
+      String feetAbbr, String infinity) {
+    this.columns = lastPixel + 1;
+    this.xdpm = xdpm;
+    this.eyesep = eyesep;
+    this.armlength = armlength;
+    this.imperial = imperial;
+    distances = new float[columns];
+    accuracies = new float[columns];
+    labels = new String[columns];
+    char [] buf = new char[64];
+    for (int p = 0; p < columns; p++) {
+      float userDisp = p / xdpm;
+      float userDist = RangeMath.distance(eyesep, armlength, userDisp);
+      float userDistAccuracy = RangeMath.accuracy(eyesep, armlength, userDisp);
+      distances[p] = userDist;
+      accuracies[p] = userDistAccuracy;
+      if (userDistAccuracy == RangeMath.INFINITE) {
+        labels[p] = infinity;
+        continue;
+      }
+      int decimals = LabelFormatter.decimalsForAccuracy(userDistAccuracy);
+      int n;
+      if (imperial) {
+        n = formatter.appendDistance(userDist / RangeMath.METERS_PER_FOOT,
+            decimals, buf, 0);
+        n = formatter.appendString(feetAbbr, buf, n);
+      } else {
+        n = formatter.appendDistance(userDist, decimals, buf, 0);
+        n = formatter.appendString(meterAbbr, buf, n);
+      }
+      labels[p] = new String(buf, 0, n);
+    }
+  }
+
+  /**
+   * @return true if this table covers pixel and was built for these
+   *     parameters
+   */
+  public boolean matches(int pixel, float xdpm, float eyesep, float armlength,
+      boolean imperial) {
+    return pixel >= 0 && pixel < columns && this.xdpm == xdpm
+        && this.eyesep == eyesep && this.armlength == armlength
+        && this.imperial == imperial;
+  }
+
+  public int getLastPixel() {
+    return columns - 1;
+  }
+
+  /** @return distance in meters for the given pixel offset */
+  public float getDistance(int pixel) {
+    return distances[pixel];
+  }
+
+  /** @return accuracy in meters, or -1 if the distance is infinite */
+  public float getAccuracy(int pixel) {
+    return accuracies[pixel];
+  }
+
+  public String getLabel(int pixel) {
+    return labels[pixel];
+  }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package org.odk.rangefinder;
+
+/**
+ * Lines of the ruler along the bottom edge of the range card: 16ths of an
+ * inch, or millimeters, with longer lines at the halves and quarters or
+ * half centimeters, and a number at each inch or centimeter.  Built once
+ * per calibration and screen with the static layer, drawing just reads the
+ * arrays.
+ */
+public final class RulerLayout {
+
+  /** Returned by {@link #getNumber} for lines without a number. */
+  public static final int NO_NUMBER = -1;
+
+  private final int count;
+  private final float [] xs;
+  private final int [] lengths;
+  private final int [] numbers;
+
+  /**
+   * @param xdpi pixels per inch across the card
+   * @param width pixels across the card
+   */
+  public RulerLayout(float xdpi, int width, boolean imperial) {
+    int n;
+    float dots;  // pixels per inch or meter
+    int divisions;  // lines per inch or meter
+    if (imperial) {
+      float inches = width / xdpi;
+      n = (int) (inches * 16) + 1;  // in 16ths of inch
+      dots = xdpi;
+      divisions = 16;
+    } else {
+      float xdpm = RangeMath.dotsPerMeter(xdpi);
+      float cm = width / xdpm * 100;
+      n = (int) (cm * 10) + 1;  // in 10ths of cms
+      dots = xdpm;
+      divisions = 1000;
+    }
+    count = n;
+    xs = new float[n];
+    lengths = new int[n];
+    numbers = new int[n];
+    for (int i = 0; i < n; i++) {
+      xs[i] = (int) (i * dots / divisions);
+      numbers[i] = NO_NUMBER;
+      if (imperial) {
+        if (i % 16 == 0) {
+          lengths[i] = 28;
+          numbers[i] = i / 16;
+        } else if (i % 8 == 0) {
+          lengths[i] = 22;
+        } else if (i % 4 == 0) {
+          lengths[i] = 15;
+        } else {
+          lengths[i] = 8;
+        }
+      } else {
+        if (i % 10 == 0) {
+          lengths[i] = 25;
+          numbers[i] = i / 10;
+        } else if (i % 5 == 0) {
+          lengths[i] = 17;
+        } else {
+          lengths[i] = 10;
+        }
+      }
+    }
+  }
+
+  public int getCount() {
+    return count;
+  }
+
+  /** @return pixel offset of line i, on a whole pixel */
+  public float getX(int i) {
+    return xs[i];
+  }
+
+  /** @return how far line i reaches up from the edge, in pixels */
+  public int getLength(int i) {
+    return lengths[i];
+  }
+
+  /**
+   * @return the inches or centimeters written by line i, or
+   *     {@link #NO_NUMBER}
+   */
+  public int getNumber(int i) {
+    return numbers[i];
+  }
+}
@@ -0,0 +1,55 @@
+/*
+ * Copyright (C) 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package org.odk.rangefinder;
+
+/**
+ * Where {@link InclinationReader} gets its readings from: the device's
+ * sensors, see {@link AndroidSensorSource}, or a recorded trace replayed on a
+ * plain JVM.
+ */
+public interface SensorSource {
+
+  /** Receives readings, all on one thread. */
+  interface Listener {
+    /**
+     * @param type one of the InclinationEstimator TYPE constants
+     * @param timestamp in nanoseconds
+     */
+    void onReading(int type, float x, float y, float z, long timestamp);
+  }
+
+  /**
+   * Picks the sensors, the first time it is called.
+   * @return a bit, 1 << type, for each sensor type that will be read, or 0
+   *     if there are none
+   */
+  int getTypes();
+
+  /**
+   * Starts delivering readings to listener.
+   * @return the bits of the sensor types actually started, as for
+   *     {@link #getTypes}
+   */
+  int start(Listener listener);
+
+  /** Stops delivering readings until {@link #start}. */
+  void stop();
+
+  /** Stops for good, ending any thread the readings were delivered on. */
+  void release();
+}
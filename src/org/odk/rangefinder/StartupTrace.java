@@ -0,0 +1,127 @@
+/*
+ * Copyright (C) 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package org.odk.rangefinder;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.lang.reflect.Method;
+
+/**
+ * Times named sections of activity startup and the time from onCreate to the
+ * first frame of the range card, and logs them once that frame is drawn.
+ * Sections also show up in systrace on devices that have android.os.Trace
+ * (API level 18), which is looked up by reflection since we build against an
+ * older SDK.  Only used from the UI thread.
+ */
+final class StartupTrace {
+
+  private static final String TAG = "RangeFinderStartup";
+  /** Time to first draw we try to stay under, in milliseconds. */
+  static final long FIRST_DRAW_BUDGET_MS = 250;
+  private static final int MAX_SECTIONS = 16;
+
+  private static final String [] sectionNames = new String[MAX_SECTIONS];
+  private static final long [] sectionMillis = new long[MAX_SECTIONS];
+  private static int sectionCount = 0;
+  private static long startTime = 0;
+  private static long sectionStart = 0;
+  private static long timeToFirstDraw = -1;
+
+  private static Method traceBegin;
+  private static Method traceEnd;
+  static {
+    try {
+      Class<?> trace = Class.forName("android.os.Trace");
+      traceBegin = trace.getMethod("beginSection", String.class);
+      traceEnd = trace.getMethod("endSection");
+    } catch (Exception e) {
+      // Not available before API level 18, just time the sections ourselves.
+    }
+  }
+
+  private StartupTrace() {
+  }
+
+  /** Starts timing a new launch. */
+  static void start() {
+    sectionCount = 0;
+    timeToFirstDraw = -1;
+    startTime = SystemClock.uptimeMillis();
+  }
+
+  static void beginSection(String name) {
+    if (sectionCount < MAX_SECTIONS) {
+      sectionNames[sectionCount] = name;
+    }
+    invoke(traceBegin, name);
+    sectionStart = SystemClock.uptimeMillis();
+  }
+
+  static void endSection() {
+    long now = SystemClock.uptimeMillis();
+    invoke(traceEnd, null);
+    if (sectionCount < MAX_SECTIONS) {
+      sectionMillis[sectionCount++] = now - sectionStart;
+    }
+  }
+
+  /**
+   * Records that the first frame was drawn, and logs the startup timings.
+   * Only the first call after {@link #start} counts.
+   */
+  static void firstDraw() {
+    if (timeToFirstDraw >= 0 || startTime == 0) {
+      return;
+    }
+    timeToFirstDraw = SystemClock.uptimeMillis() - startTime;
+    StringBuilder summary = new StringBuilder("Time to first draw ")
+        .append(timeToFirstDraw).append("ms");
+    for (int i = 0; i < sectionCount; i++) {
+      summary.append(", ").append(sectionNames[i]).append(' ')
+          .append(sectionMillis[i]).append("ms");
+    }
+    if (timeToFirstDraw > FIRST_DRAW_BUDGET_MS) {
+      summary.append(", over the ").append(FIRST_DRAW_BUDGET_MS)
+          .append("ms budget");
+      Log.w(TAG, summary.toString());
+    } else {
+      Log.i(TAG, summary.toString());
+    }
+  }
+
+  /** @return milliseconds from onCreate to the first frame, -1 if not yet */
+  static long getTimeToFirstDraw() {
+    return timeToFirstDraw;
+  }
+
+  private static void invoke(Method method, String arg) {
+    if (method == null) {
+      return;
+    }
+    try {
+      if (arg == null) {
+        method.invoke(null);
+      } else {
+        method.invoke(null, arg);
+      }
+    } catch (Exception e) {
+      // Tracing is best effort.
+    }
+  }
+}
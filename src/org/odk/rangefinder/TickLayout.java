@@ -0,0 +1,259 @@
+/*
+ * Copyright (C) 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package org.odk.rangefinder;
+
+/**
+ * Tick marks for the top edge of the range card.  The main ticks are the
+ * 1, 2, 5, 10, 20... series from arm's length, where the card starts, to the
+ * distance at its far edge, placed with the inverse of the range formula.
+ * Ticks closer than a minimum spacing are dropped, and the gaps left between
+ * main ticks are filled with 1.5, 3, 4, 6 and 8 where there is room.  Each
+ * label goes in the first of a few staggered rows where it doesn't overlap
+ * the labels already placed or their tick lines, or is left off if there's
+ * no room, in one greedy pass over the ticks in order.  Built once per
+ * calibration and screen, drawing just reads the arrays.
+ */
+public final class TickLayout {
+
+  /** Measures how wide a label is drawn. */
+  public interface TextMeasurer {
+    float measureText(String text);
+  }
+
+  /** Rows labels are staggered over. */
+  public static final int ROWS = 3;
+
+  private static final float [] MAJOR_SERIES = {1, 2, 5};
+  private static final float [] MINOR_SERIES = {1.5f, 3, 4, 6, 8};
+
+  private final int count;
+  private final float [] distances;  // feet or meters
+  private final float [] xs;
+  private final boolean [] majors;
+  private final String [] labels;
+  private final float [] labelXs;
+  private final int [] rows;
+
+  /**
+   * @param xdpm dots per meter, in x dimension
+   * @param eyesep eye separation, meters
+   * @param armlength arm length, meters
+   * @param width pixels across the card
+   * @param minSpacing pixels between tick lines
+   * @param labelGap pixels between labels in a row
+   */
+  public TickLayout(float xdpm, float eyesep, float armlength,
+      boolean imperial, int width, LabelFormatter formatter, String unitAbbr,
+      TextMeasurer measurer, float minSpacing, float labelGap) {
+    float [] major = distances(MAJOR_SERIES, xdpm, eyesep, armlength,
+        imperial, width);
+    float [] minor = distances(MINOR_SERIES, xdpm, eyesep, armlength,
+        imperial, width);
+    int capacity = major.length + minor.length;
+    distances = new float[capacity];
+    xs = new float[capacity];
+    majors = new boolean[capacity];
+    labels = new String[capacity];
+    labelXs = new float[capacity];
+    rows = new int[capacity];
+
+    // The main ticks that are far enough apart.
+    float [] majorXs = new float[major.length];
+    float [] majorDs = new float[major.length];
+    int m = 0;
+    for (float d : major) {
+      float x = pixelFor(d, xdpm, eyesep, armlength, imperial);
+      if (m == 0 || x - majorXs[m - 1] >= minSpacing) {
+        majorXs[m] = x;
+        majorDs[m++] = d;
+      }
+    }
+
+    // Merge in the minor ticks that have room on both sides.
+    int n = 0;
+    int j = 0;
+    float lastX = -Float.MAX_VALUE;
+    for (int i = 0; i <= minor.length; i++) {
+      float x = i < minor.length
+          ? pixelFor(minor[i], xdpm, eyesep, armlength, imperial)
+          : Float.MAX_VALUE;
+      while (j < m && majorXs[j] <= x) {
+        lastX = add(n++, majorDs[j], majorXs[j], true);
+        j++;
+      }
+      float nextX = j < m ? majorXs[j] : Float.MAX_VALUE;
+      if (i < minor.length && x - lastX >= 2 * minSpacing
+          && nextX - x >= 2 * minSpacing) {
+        lastX = add(n++, minor[i], x, false);
+      }
+    }
+    count = n;
+
+    // Each label, formatted and measured once.
+    String [] texts = new String[count];
+    float [] widths = new float[count];
+    char [] buf = new char[32];
+    for (int i = 0; i < count; i++) {
+      texts[i] = format(distances[i], formatter, unitAbbr, buf);
+      widths[i] = measurer.measureText(texts[i]);
+    }
+
+    // Main ticks get the room they need before minor ones, so a minor
+    // label has to end before the next main tick's label starts.
+    float [] limits = new float[count];
+    float nextMajorLeft = width;
+    for (int i = count - 1; i >= 0; i--) {
+      limits[i] = majors[i] ? width : Math.min(width, nextMajorLeft);
+      if (majors[i]) {
+        nextMajorLeft = xs[i] - widths[i] / 2 - labelGap;
+      }
+    }
+
+    float [] rowEnds = new float[ROWS];
+    for (int r = 0; r < ROWS; r++) {
+      rowEnds[r] = -Float.MAX_VALUE;
+    }
+    for (int i = 0; i < count; i++) {
+      float w = widths[i];
+      float left = Math.max(0, xs[i] - w / 2);
+      if (left + w > limits[i]) {
+        continue;
+      }
+      for (int r = 0; r < ROWS; r++) {
+        if (left >= rowEnds[r] + labelGap) {
+          labels[i] = texts[i];
+          labelXs[i] = left;
+          rows[i] = r;
+          rowEnds[r] = left + w;
+          // The tick line runs down through the rows above the label.
+          for (int q = 0; q < r; q++) {
+            rowEnds[q] = Math.max(rowEnds[q], xs[i]);
+          }
+          break;
+        }
+        if (xs[i] <= rowEnds[r]) {
+          break;  // The tick line would run through this row's label.
+        }
+      }
+    }
+  }
+
+  private float add(int i, float distance, float x, boolean major) {
+    distances[i] = distance;
+    xs[i] = x;
+    majors[i] = major;
+    return x;
+  }
+
+  private static String format(float distance, LabelFormatter formatter,
+      String unitAbbr, char [] buf) {
+    int decimals = distance >= 1 && distance % 1 == 0 ? 0
+        : distance >= 0.1f ? 1 : 2;
+    int n = formatter.appendFixed(distance, decimals, true, buf, 0);
+    n = formatter.appendString(unitAbbr, buf, n);
+    return new String(buf, 0, n);
+  }
+
+  /**
+   * @return the main ticks' distances, in feet or meters, that fall on a
+   *     card of the given width, nearest first; none if the calibration
+   *     isn't complete or the card is too narrow to reach past arm's length
+   */
+  public static float [] distances(float xdpm, float eyesep, float armlength,
+      boolean imperial, int width) {
+    return distances(MAJOR_SERIES, xdpm, eyesep, armlength, imperial, width);
+  }
+
+  private static float [] distances(float [] series, float xdpm,
+      float eyesep, float armlength, boolean imperial, int width) {
+    // The card starts at arm's length, and ends at its edge or a pixel
+    // short of where the distance becomes infinite.
+    float lastPixel = Math.min(width, eyesep * xdpm - 1);
+    float nearest = toUnits(armlength, imperial);
+    float farthest = lastPixel > 0 ? toUnits(
+        RangeMath.distance(eyesep, armlength, lastPixel / xdpm), imperial)
+        : nearest;
+    if (!(nearest > 0 && farthest > nearest)) {
+      return new float[0];  // Nothing to step through by decades.
+    }
+    float [] out = new float[16];
+    int n = 0;
+    double decade = Math.pow(10, Math.floor(Math.log10(nearest)));
+    while (decade * series[0] <= farthest) {
+      for (float m : series) {
+        float d = (float) (decade * m);
+        if (d >= nearest && d <= farthest) {
+          if (n == out.length) {
+            float [] bigger = new float[n * 2];
+            System.arraycopy(out, 0, bigger, 0, n);
+            out = bigger;
+          }
+          out[n++] = d;
+        }
+      }
+      decade *= 10;
+    }
+    float [] result = new float[n];
+    System.arraycopy(out, 0, result, 0, n);
+    return result;
+  }
+
+  /** @return pixel offset of a distance in feet or meters */
+  public static float pixelFor(float distance, float xdpm, float eyesep,
+      float armlength, boolean imperial) {
+    float meters = imperial ? distance * RangeMath.METERS_PER_FOOT : distance;
+    return RangeMath.displacement(eyesep, armlength, meters) * xdpm;
+  }
+
+  private static float toUnits(float meters, boolean imperial) {
+    return imperial ? meters / RangeMath.METERS_PER_FOOT : meters;
+  }
+
+  public int getCount() {
+    return count;
+  }
+
+  /** @return distance of tick i, in feet or meters */
+  public float getDistance(int i) {
+    return distances[i];
+  }
+
+  public float getX(int i) {
+    return xs[i];
+  }
+
+  /** @return true for ticks on the 1-2-5 series */
+  public boolean isMajor(int i) {
+    return majors[i];
+  }
+
+  /** @return the label of tick i, or null if it didn't fit */
+  public String getLabel(int i) {
+    return labels[i];
+  }
+
+  /** @return the left edge of tick i's label */
+  public float getLabelX(int i) {
+    return labelXs[i];
+  }
+
+  /** @return which of the staggered rows tick i's label is in */
+  public int getRow(int i) {
+    return rows[i];
+  }
+}
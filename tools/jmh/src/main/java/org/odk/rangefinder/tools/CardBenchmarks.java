@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package org.odk.rangefinder.tools;
+
+import org.odk.rangefinder.LabelFormatter;
+import org.odk.rangefinder.RangeMath;
+import org.odk.rangefinder.RangeTable;
+import org.odk.rangefinder.RulerLayout;
+import org.odk.rangefinder.TickLayout;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The card's hot paths under JMH: looking up a solved distance, building a
+ * range table, and laying out the ticks and ruler, at common screen
+ * densities, through the classes the app uses.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 200, timeUnit = TimeUnit.MILLISECONDS)
+@Measurement(iterations = 10, time = 200, timeUnit = TimeUnit.MILLISECONDS)
+@Fork(1)
+@State(Scope.Thread)
+public class CardBenchmarks {
+
+  // An average calibration, as in TraceReplay.
+  private static final float EYE_SEPARATION = 0.065f;  // meters
+  private static final float ARM_LENGTH = 0.6f;  // meters
+  // A phone's long side, held in landscape.
+  private static final float SCREEN_INCHES = 3.5f;
+
+  @Param({"120", "160", "240", "320", "480", "640"})
+  public float dpi;
+
+  @Param({"false", "true"})
+  public boolean imperial;
+
+  private int width;
+  private float xdpm;
+  private final LabelFormatter formatter = new LabelFormatter();
+  private final char [] buf = new char[32];
+  private RangeTable table;
+  private TickLayout.TextMeasurer measurer;
+  private int pixel = 0;
+
+  @Setup
+  public void setUp() {
+    width = (int) (SCREEN_INCHES * dpi);
+    xdpm = RangeMath.dotsPerMeter(dpi);
+    table = new RangeTable(width, xdpm, EYE_SEPARATION, ARM_LENGTH,
+        imperial, formatter, "m", "f", "\u221E");
+    measurer = new TickLayout.TextMeasurer() {
+      public float measureText(String text) {
+        return text.length() * 0.55f * 14 * dpi / 160;
+      }
+    };
+  }
+
+  /** What a frame does once the table is built. */
+  @Benchmark
+  public int tableLookup() {
+    pixel = pixel == width ? 0 : pixel + 1;
+    return Float.floatToIntBits(table.getDistance(pixel))
+        + table.getLabel(pixel).length();
+  }
+
+  /** What a frame does the first time a calibration is used. */
+  @Benchmark
+  public RangeTable rangeTable() {
+    return new RangeTable(width, xdpm, EYE_SEPARATION, ARM_LENGTH, imperial,
+        formatter, "m", "f", "\u221E");
+  }
+
+  @Benchmark
+  public TickLayout ticks() {
+    return new TickLayout(xdpm, EYE_SEPARATION, ARM_LENGTH, imperial, width,
+        formatter, imperial ? "f" : "m", measurer, dpi / 32, dpi / 20);
+  }
+
+  /** What RangeCard.drawRuler does besides drawing. */
+  @Benchmark
+  public int ruler() {
+    RulerLayout ruler = new RulerLayout(dpi, width, imperial);
+    int chars = 0;
+    for (int i = 0; i < ruler.getCount(); i++) {
+      int number = ruler.getNumber(i);
+      if (number != RulerLayout.NO_NUMBER) {
+        chars += formatter.appendInt(number, buf, 0);
+      }
+    }
+    return ruler.getCount() + chars;
+  }
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.odk.rangefinder.tools;
+
+import org.odk.rangefinder.LabelFormatter;
+import org.odk.rangefinder.RangeMath;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.text.DecimalFormat;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Labels as the card formats them under JMH, against the DecimalFormat per
+ * number of decimals they replaced, on the distances and accuracies of a
+ * card's pixel columns.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 200, timeUnit = TimeUnit.MILLISECONDS)
+@Measurement(iterations = 10, time = 200, timeUnit = TimeUnit.MILLISECONDS)
+@Fork(1)
+@State(Scope.Thread)
+public class FormatBenchmarks {
+
+  // An average calibration, as in TraceReplay.
+  private static final float EYE_SEPARATION = 0.065f;  // meters
+  private static final float ARM_LENGTH = 0.6f;  // meters
+  // A power of two, so the next value is a mask away.
+  private static final int VALUES = 64;
+
+  private final float [] values = new float[VALUES];
+  private final int [] decimals = new int[VALUES];
+  private final LabelFormatter formatter = new LabelFormatter();
+  private final DecimalFormat [] formats = {new DecimalFormat("#,##0"),
+      new DecimalFormat("0.0"), new DecimalFormat("0.00"),
+      new DecimalFormat("0.000")};
+  private final char [] buf = new char[32];
+  private int i = 0;
+
+  @Setup
+  public void setUp() {
+    float xdpm = RangeMath.dotsPerMeter(160);
+    int width = 560;
+    for (int v = 0; v < VALUES; v++) {
+      float pixel = v * width / VALUES;
+      values[v] = RangeMath.distance(EYE_SEPARATION, ARM_LENGTH,
+          pixel / xdpm);
+      decimals[v] = LabelFormatter.decimalsForAccuracy(
+          RangeMath.accuracy(EYE_SEPARATION, ARM_LENGTH, pixel / xdpm));
+    }
+  }
+
+  /** What RangeTable and drawCard do for a label. */
+  @Benchmark
+  public int appendDistance() {
+    i = (i + 1) & (VALUES - 1);
+    int n = formatter.appendDistance(values[i], decimals[i], buf, 0);
+    return formatter.appendString("m", buf, n);
+  }
+
+  /** The same, kept as a String, as RangeTable keeps its labels. */
+  @Benchmark
+  public String appendDistanceString() {
+    i = (i + 1) & (VALUES - 1);
+    int n = formatter.appendDistance(values[i], decimals[i], buf, 0);
+    n = formatter.appendString("m", buf, n);
+    return new String(buf, 0, n);
+  }
+
+  @Benchmark
+  public String decimalFormat() {
+    i = (i + 1) & (VALUES - 1);
+    return formats[decimals[i]].format(values[i]) + "m";
+  }
+
+  @Benchmark
+  public int appendInt() {
+    i = (i + 1) & 1023;
+    return formatter.appendInt(i, buf, 0);
+  }
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright (C) 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.odk.rangefinder.tools;
+
+import org.odk.rangefinder.RangeMath;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * RangeMath's solves under JMH: one pixel at a time, as solveUserDist does
+ * when a table has to be built, and every pixel column of a card at once.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 200, timeUnit = TimeUnit.MILLISECONDS)
+@Measurement(iterations = 10, time = 200, timeUnit = TimeUnit.MILLISECONDS)
+@Fork(1)
+@State(Scope.Thread)
+public class SolveBenchmarks {
+
+  // An average calibration, as in TraceReplay.
+  private static final float EYE_SEPARATION = 0.065f;  // meters
+  private static final float ARM_LENGTH = 0.6f;  // meters
+
+  @Param({"480", "1080"})
+  public int columns;
+
+  private final float xdpm = RangeMath.dotsPerMeter(160);
+  private float [] pixels;
+  private float [] distances;
+  private float [] accuracies;
+  private int pixel = 0;
+
+  @Setup
+  public void setUp() {
+    pixels = new float[columns];
+    distances = new float[columns];
+    accuracies = new float[columns];
+    for (int p = 0; p < columns; p++) {
+      pixels[p] = p;
+    }
+  }
+
+  @Benchmark
+  public float distance() {
+    pixel = pixel == columns ? 0 : pixel + 1;
+    return RangeMath.distance(EYE_SEPARATION, ARM_LENGTH, pixel / xdpm);
+  }
+
+  @Benchmark
+  public float accuracy() {
+    pixel = pixel == columns ? 0 : pixel + 1;
+    return RangeMath.accuracy(EYE_SEPARATION, ARM_LENGTH, pixel / xdpm);
+  }
+
+  @Benchmark
+  public float[] solvePixels() {
+    RangeMath.solvePixels(pixels, 0, columns, xdpm, EYE_SEPARATION,
+        ARM_LENGTH, distances, accuracies, 0);
+    return distances;
+  }
+}
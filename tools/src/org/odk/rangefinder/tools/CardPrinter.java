@@ -0,0 +1,496 @@
+/*
+ * Copyright (C) 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package org.odk.rangefinder.tools;
+
+import org.odk.rangefinder.LabelFormatter;
+import org.odk.rangefinder.RangeMath;
+import org.odk.rangefinder.TickLayout;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Prints range cards for a whole team, as SVG and/or PDF files to print as
+ * backups for the phone.  Each card has the same tick marks as the phone's
+ * card for the person's calibration, laid out by TickLayout, an edge to line
+ * up with the object, and a ruler to check it was printed at 100%.
+ * <p>
+ * The team is read from a CSV file with one card per line:
+ * <pre>
+ * # name,arm length (m),eye separation (m),units,print dpi
+ * Alice,0.62,0.064,metric,300
+ * Bob,0.58,0.061,imperial,600
+ * </pre>
+ * Lines are read and cards written one at a time by a pool of workers, and
+ * each card is written straight to its own file, so memory use doesn't grow
+ * with the size of the team.  Files are named after the line number and
+ * name.
+ * <p>
+ * Usage:
+ * <pre>
+ * CardPrinter [-threads n] [-format svg|pdf|both] [-out dir] team.csv
+ * </pre>
+ */
+public class CardPrinter {
+
+  // Card geometry, in inches.
+  private static final float MARGIN = 0.25f;
+  private static final float HEIGHT = 1.75f;
+  private static final float FONT = 0.11f;
+  private static final float SMALL_FONT = 0.09f;
+  private static final float TICK = 0.3f;  // labeled ticks, plus a row each
+  private static final float ROW = 0.14f;
+  private static final float MAJOR_TICK = 0.2f;  // ticks without a label
+  private static final float MINOR_TICK = 0.12f;
+  private static final float CAPTION = 1.2f;  // baseline
+  private static final float LINE_WIDTH = 0.01f;
+  private static final float EDGE_WIDTH = 0.02f;
+  // Helvetica's digits are 0.556 em wide, most other characters less.
+  private static final float CHAR_WIDTH = 0.556f;
+
+  private static final String METER_ABBR = "m";  // As on the phone.
+  private static final String FEET_ABBR = "f";
+
+  /** One person's card. */
+  static final class Card {
+    final int line;
+    final String name;
+    final float armlength;  // meters
+    final float eyesep;  // meters
+    final boolean imperial;
+    final float dpi;
+
+    Card(int line, String name, float armlength, float eyesep,
+        boolean imperial, float dpi) {
+      this.line = line;
+      this.name = name;
+      this.armlength = armlength;
+      this.eyesep = eyesep;
+      this.imperial = imperial;
+      this.dpi = dpi;
+    }
+
+    /** @return the card's width in dots, margins included */
+    float width() {
+      return eyesep * RangeMath.dotsPerMeter(dpi) + 2 * MARGIN * dpi;
+    }
+
+    float height() {
+      return HEIGHT * dpi;
+    }
+  }
+
+  /** What a card is drawn on, in dots from the top left. */
+  interface Surface {
+    void line(float x1, float y1, float x2, float y2, float width);
+    void text(float x, float y, float size, String text);
+  }
+
+  /**
+   * @return the card on a CSV line, or null for a blank, comment or header
+   *     line
+   * @throws IllegalArgumentException if the line isn't a card
+   */
+  static Card parse(int lineNumber, String line) {
+    String trimmed = line.trim();
+    if (trimmed.length() == 0 || trimmed.startsWith("#")) {
+      return null;
+    }
+    String [] f = trimmed.split("\\s*,\\s*");
+    if (f.length != 5) {
+      throw new IllegalArgumentException("expected 5 fields, found "
+          + f.length);
+    }
+    if (lineNumber == 1 && f[0].equalsIgnoreCase("name")) {
+      return null;
+    }
+    float armlength;
+    float eyesep;
+    float dpi;
+    try {
+      armlength = Float.parseFloat(f[1]);
+      eyesep = Float.parseFloat(f[2]);
+      dpi = Float.parseFloat(f[4]);
+    } catch (NumberFormatException e) {
+      throw new IllegalArgumentException("bad number: " + e.getMessage());
+    }
+    if (!(armlength > 0 && eyesep > 0 && eyesep < armlength && dpi >= 72)) {
+      throw new IllegalArgumentException("arm length and eye separation "
+          + "must be positive, eyes narrower than arm, and dpi at least 72");
+    }
+    boolean imperial;
+    if (f[3].equalsIgnoreCase("imperial")) {
+      imperial = true;
+    } else if (f[3].equalsIgnoreCase("metric")) {
+      imperial = false;
+    } else {
+      throw new IllegalArgumentException("units must be metric or imperial");
+    }
+    return new Card(lineNumber, f[0], armlength, eyesep, imperial, dpi);
+  }
+
+  /** Draws a card: the edge, tick marks, caption and ruler. */
+  static void draw(Card card, Surface s) {
+    float dpi = card.dpi;
+    float xdpm = RangeMath.dotsPerMeter(dpi);
+    float left = MARGIN * dpi;
+    float w = card.width();
+    float h = card.height();
+    float lineWidth = LINE_WIDTH * dpi;
+
+    // Cut marks around the card, and the edge to line up with the object.
+    s.line(0, 0, w, 0, lineWidth);
+    s.line(w, 0, w, h, lineWidth);
+    s.line(w, h, 0, h, lineWidth);
+    s.line(0, h, 0, 0, lineWidth);
+    s.line(left, 0, left, h, EDGE_WIDTH * dpi);
+
+    final float fontSize = FONT * dpi;
+    TickLayout ticks = new TickLayout(xdpm, card.eyesep, card.armlength,
+        card.imperial, (int) (card.eyesep * xdpm), new LabelFormatter(),
+        card.imperial ? FEET_ABBR : METER_ABBR,
+        new TickLayout.TextMeasurer() {
+          public float measureText(String text) {
+            return text.length() * CHAR_WIDTH * fontSize;
+          }
+        }, dpi / 32, dpi / 20);
+    for (int i = 0; i < ticks.getCount(); i++) {
+      float x = left + ticks.getX(i);
+      String label = ticks.getLabel(i);
+      if (label == null) {
+        float length = ticks.isMajor(i) ? MAJOR_TICK : MINOR_TICK;
+        s.line(x, 0, x, length * dpi, lineWidth);
+        continue;
+      }
+      float bottom = (TICK + ROW * ticks.getRow(i)) * dpi;
+      s.line(x, 0, x, bottom, lineWidth);
+      s.text(left + ticks.getLabelX(i), bottom + fontSize, fontSize, label);
+    }
+
+    String caption;
+    if (card.imperial) {
+      caption = String.format(Locale.US, "%s   arm %.1f in   eyes %.2f in",
+          card.name, card.armlength * RangeMath.INCHES_PER_METER,
+          card.eyesep * RangeMath.INCHES_PER_METER);
+    } else {
+      caption = String.format(Locale.US, "%s   arm %.1f cm   eyes %.1f cm",
+          card.name, card.armlength * 100, card.eyesep * 100);
+    }
+    s.text(left + 0.1f * dpi, CAPTION * dpi, fontSize, caption);
+    drawRuler(card, s, left, w - left, h);
+  }
+
+  /**
+   * Draws a ruler along the bottom, like the one on the phone, in 16ths of
+   * an inch or millimeters.
+   */
+  private static void drawRuler(Card card, Surface s, float left,
+      float right, float h) {
+    float dpi = card.dpi;
+    float lineWidth = LINE_WIDTH * dpi;
+    float fontSize = SMALL_FONT * dpi;
+    int steps = card.imperial ? 16 : 10;  // per inch or centimeter
+    float stepDots = card.imperial ? dpi / 16
+        : RangeMath.dotsPerMeter(dpi) / 1000;
+    int end = (int) ((right - left) / stepDots);
+    for (int i = 0; i <= end; i++) {
+      float x = left + i * stepDots;
+      float length;
+      if (i % steps == 0) {
+        length = 0.17f;
+        s.text(x + 0.02f * dpi, h - 0.18f * dpi, fontSize,
+            Integer.toString(i / steps));
+      } else if (i % (steps / 2) == 0) {
+        length = 0.13f;
+      } else if (card.imperial && i % 4 == 0) {
+        length = 0.09f;
+      } else {
+        length = 0.05f;
+      }
+      s.line(x, h - length * dpi, x, h, lineWidth);
+    }
+  }
+
+  /** Writes a card as SVG, sized in inches so it prints true to scale. */
+  static final class Svg implements Surface {
+    private final StringBuilder body = new StringBuilder();
+
+    public void line(float x1, float y1, float x2, float y2, float width) {
+      body.append("<line x1=\"").append(fmt(x1)).append("\" y1=\"")
+          .append(fmt(y1)).append("\" x2=\"").append(fmt(x2))
+          .append("\" y2=\"").append(fmt(y2)).append("\" stroke-width=\"")
+          .append(fmt(width)).append("\"/>\n");
+    }
+
+    public void text(float x, float y, float size, String text) {
+      body.append("<text x=\"").append(fmt(x)).append("\" y=\"")
+          .append(fmt(y)).append("\" font-size=\"").append(fmt(size))
+          .append("\">");
+      for (int i = 0; i < text.length(); i++) {
+        char c = text.charAt(i);
+        switch (c) {
+          case '<': body.append("&lt;"); break;
+          case '>': body.append("&gt;"); break;
+          case '&': body.append("&amp;"); break;
+          default: body.append(c); break;
+        }
+      }
+      body.append("</text>\n");
+    }
+
+    void writeTo(Card card, Writer out) throws IOException {
+      float w = card.width();
+      float h = card.height();
+      out.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+      out.write("<svg xmlns=\"http://www.w3.org/2000/svg\" width=\""
+          + fmt(w / card.dpi) + "in\" height=\"" + fmt(h / card.dpi)
+          + "in\" viewBox=\"0 0 " + fmt(w) + " " + fmt(h) + "\">\n");
+      out.write("<g stroke=\"black\" stroke-linecap=\"square\" "
+          + "font-family=\"Helvetica, Arial, sans-serif\">\n");
+      out.append(body);
+      out.write("</g>\n</svg>\n");
+    }
+  }
+
+  /**
+   * Writes a card as a one page PDF, using the standard Helvetica font so
+   * nothing has to be embedded.  Drawing is in dots with y down, turned
+   * into points by the page's transform.
+   */
+  static final class Pdf implements Surface {
+    private final StringBuilder content = new StringBuilder();
+
+    public void line(float x1, float y1, float x2, float y2, float width) {
+      content.append(fmt(width)).append(" w ").append(fmt(x1)).append(' ')
+          .append(fmt(y1)).append(" m ").append(fmt(x2)).append(' ')
+          .append(fmt(y2)).append(" l S\n");
+    }
+
+    public void text(float x, float y, float size, String text) {
+      // Flip the text back up, since the page's y axis points down.
+      content.append("BT /F1 ").append(fmt(size)).append(" Tf 1 0 0 -1 ")
+          .append(fmt(x)).append(' ').append(fmt(y)).append(" Tm (");
+      for (int i = 0; i < text.length(); i++) {
+        char c = text.charAt(i);
+        if (c == '(' || c == ')' || c == '\\') {
+          content.append('\\').append(c);
+        } else if (c < ' ' || c > '\u00ff') {
+          content.append('?');  // Not in the standard fonts' encoding.
+        } else {
+          content.append(c);
+        }
+      }
+      content.append(") Tj ET\n");
+    }
+
+    void writeTo(Card card, OutputStream out) throws IOException {
+      float scale = 72 / card.dpi;
+      float w = card.width() * scale;
+      float h = card.height() * scale;
+      byte [] stream = (fmt(scale) + " 0 0 " + fmt(-scale) + " 0 " + fmt(h)
+          + " cm 1 J\n" + content).getBytes("ISO-8859-1");
+      String [] objects = {
+          "<< /Type /Catalog /Pages 2 0 R >>",
+          "<< /Type /Pages /Kids [3 0 R] /Count 1 >>",
+          "<< /Type /Page /Parent 2 0 R /MediaBox [0 0 " + fmt(w) + " "
+              + fmt(h) + "] /Resources << /Font << /F1 4 0 R >> >> "
+              + "/Contents 5 0 R >>",
+          "<< /Type /Font /Subtype /Type1 /BaseFont /Helvetica "
+              + "/Encoding /WinAnsiEncoding >>",
+          "<< /Length " + stream.length + " >>"};
+      long [] offsets = new long[objects.length];
+      long offset = write(out, "%PDF-1.4\n", 0);
+      for (int i = 0; i < objects.length; i++) {
+        offsets[i] = offset;
+        offset = write(out, (i + 1) + " 0 obj\n" + objects[i] + "\n", offset);
+        if (i == objects.length - 1) {
+          offset = write(out, "stream\n", offset);
+          out.write(stream);
+          offset += stream.length;
+          offset = write(out, "\nendstream\n", offset);
+        }
+        offset = write(out, "endobj\n", offset);
+      }
+      StringBuilder xref = new StringBuilder();
+      xref.append("xref\n0 ").append(objects.length + 1)
+          .append("\n0000000000 65535 f \n");
+      for (long o : offsets) {
+        xref.append(String.format(Locale.US, "%010d 00000 n \n", o));
+      }
+      xref.append("trailer\n<< /Size ").append(objects.length + 1)
+          .append(" /Root 1 0 R >>\nstartxref\n").append(offset)
+          .append("\n%%EOF\n");
+      write(out, xref.toString(), offset);
+    }
+
+    private static long write(OutputStream out, String s, long offset)
+        throws IOException {
+      byte [] bytes = s.getBytes("ISO-8859-1");
+      out.write(bytes);
+      return offset + bytes.length;
+    }
+  }
+
+  private static String fmt(float f) {
+    String s = String.format(Locale.US, "%.2f", f);
+    // Trim trailing zeros, cards have thousands of numbers.
+    int end = s.length();
+    while (s.charAt(end - 1) == '0') {
+      end--;
+    }
+    if (s.charAt(end - 1) == '.') {
+      end--;
+    }
+    return s.substring(0, end);
+  }
+
+  /** @return a file name for a card, safe on any file system */
+  static String fileName(Card card) {
+    StringBuilder name = new StringBuilder(String.format(Locale.US, "%04d-",
+        card.line));
+    for (int i = 0; i < card.name.length() && name.length() < 64; i++) {
+      char c = card.name.charAt(i);
+      name.append(Character.isLetterOrDigit(c) && c < 128 ? c : '_');
+    }
+    return name.toString();
+  }
+
+  static void print(Card card, File dir, boolean svg, boolean pdf)
+      throws IOException {
+    String name = fileName(card);
+    if (svg) {
+      Svg s = new Svg();
+      draw(card, s);
+      Writer out = new OutputStreamWriter(new BufferedOutputStream(
+          new FileOutputStream(new File(dir, name + ".svg"))), "UTF-8");
+      try {
+        s.writeTo(card, out);
+      } finally {
+        out.close();
+      }
+    }
+    if (pdf) {
+      Pdf p = new Pdf();
+      draw(card, p);
+      OutputStream out = new BufferedOutputStream(
+          new FileOutputStream(new File(dir, name + ".pdf")));
+      try {
+        p.writeTo(card, out);
+      } finally {
+        out.close();
+      }
+    }
+  }
+
+  public static void main(String [] args) throws Exception {
+    int threads = Runtime.getRuntime().availableProcessors();
+    String format = "both";
+    File dir = new File(".");
+    int i = 0;
+    for (; i < args.length && args[i].startsWith("-"); i += 2) {
+      if (i + 1 >= args.length) {
+        usage();
+      } else if (args[i].equals("-threads")) {
+        threads = Integer.parseInt(args[i + 1]);
+      } else if (args[i].equals("-format")) {
+        format = args[i + 1];
+      } else if (args[i].equals("-out")) {
+        dir = new File(args[i + 1]);
+      } else {
+        usage();
+      }
+    }
+    if (i != args.length - 1 || threads < 1 || !(format.equals("svg")
+        || format.equals("pdf") || format.equals("both"))) {
+      usage();
+    }
+    if (!dir.isDirectory() && !dir.mkdirs()) {
+      System.err.println("Can't create " + dir);
+      System.exit(1);
+    }
+    final boolean svg = !format.equals("pdf");
+    final boolean pdf = !format.equals("svg");
+    final File outDir = dir;
+    final AtomicInteger printed = new AtomicInteger();
+    final AtomicInteger failed = new AtomicInteger();
+
+    // A short queue, so reading the file only runs a little ahead of the
+    // workers, and the reader does the work itself when they are busy.
+    ThreadPoolExecutor workers = new ThreadPoolExecutor(threads, threads, 0,
+        TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(threads * 2),
+        new ThreadPoolExecutor.CallerRunsPolicy());
+    String path = args[i];
+    BufferedReader in = new BufferedReader(new FileReader(path));
+    try {
+      String line;
+      int lineNumber = 0;
+      while ((line = in.readLine()) != null) {
+        lineNumber++;
+        final Card card;
+        try {
+          card = parse(lineNumber, line);
+        } catch (IllegalArgumentException e) {
+          System.err.println(path + ":" + lineNumber + ": " + e.getMessage());
+          failed.incrementAndGet();
+          continue;
+        }
+        if (card == null) {
+          continue;
+        }
+        workers.execute(new Runnable() {
+          public void run() {
+            try {
+              print(card, outDir, svg, pdf);
+              printed.incrementAndGet();
+            } catch (IOException e) {
+              System.err.println(fileName(card) + ": " + e);
+              failed.incrementAndGet();
+            }
+          }
+        });
+      }
+    } finally {
+      in.close();
+      workers.shutdown();
+      workers.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+    }
+    System.out.println(printed.get() + " cards printed to " + outDir
+        + (failed.get() > 0 ? ", " + failed.get() + " failed" : ""));
+    if (failed.get() > 0) {
+      System.exit(1);
+    }
+  }
+
+  private static void usage() {
+    System.err.println("Usage: CardPrinter [-threads n] "
+        + "[-format svg|pdf|both] [-out dir] team.csv");
+    System.exit(2);
+  }
+}
@@ -0,0 +1,428 @@
+/*
+ * Copyright (C) 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package org.odk.rangefinder.tools;
+
+import org.odk.rangefinder.Calibration;
+import org.odk.rangefinder.CardController;
+import org.odk.rangefinder.CursorController;
+import org.odk.rangefinder.InclinationEstimator;
+import org.odk.rangefinder.InclinationReader;
+import org.odk.rangefinder.LabelFormatter;
+import org.odk.rangefinder.RangeMath;
+import org.odk.rangefinder.SensorSource;
+import org.odk.rangefinder.TickLayout;
+
+import java.lang.ref.WeakReference;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Checks of the card's edge cases that replaying a trace doesn't reach.
+ * Each check runs on a thread of its own with a time limit, so one that
+ * hangs fails rather than hanging the run.  Prints a line per check, and
+ * exits with status 1 if any failed.
+ * <p>
+ * Usage:
+ * <pre>
+ * Checks [name...]
+ * </pre>
+ * runs the checks starting with any of the names, or all of them.
+ */
+public class Checks {
+
+  private static final long TIME_LIMIT_MS = 10000;
+
+  // The card the checks run on, as in TraceReplay.
+  private static final int WIDTH = 480;
+  private static final float XDPI = 160;
+  private static final float XDPM = RangeMath.dotsPerMeter(XDPI);
+  private static final TickLayout.TextMeasurer MEASURER =
+      new TickLayout.TextMeasurer() {
+        public float measureText(String text) {
+          return text.length() * 11;
+        }
+      };
+
+  /** A check, failing by throwing. */
+  private interface Check {
+    void run() throws Exception;
+  }
+
+  // Holds what the sensor service or a retained activity would keep alive.
+  private static volatile Object retained;
+
+  /**
+   * Delivers an accelerometer tilting through 0 to tilts - 1 degrees on a
+   * thread of its own, started by the first start and ended by release, as
+   * AndroidSensorSource does.  Counts how it is used.
+   */
+  static final class ThreadSensorSource implements SensorSource {
+    private static final int TYPES =
+        1 << InclinationEstimator.TYPE_ACCELEROMETER;
+
+    private final int tilts;
+    private volatile Listener listener;
+    private Thread thread;
+    int starts = 0;
+    int releases = 0;
+
+    ThreadSensorSource(int tilts) {
+      this.tilts = tilts;
+    }
+
+    ThreadSensorSource() {
+      this(90);
+    }
+
+    public int getTypes() {
+      return TYPES;
+    }
+
+    public synchronized int start(Listener listener) {
+      starts++;
+      this.listener = listener;
+      if (thread == null) {
+        thread = new Thread("ThreadSensorSource") {
+          @Override
+          public void run() {
+            deliver();
+          }
+        };
+        thread.setDaemon(true);
+        thread.start();
+      }
+      return TYPES;
+    }
+
+    private void deliver() {
+      for (int i = 0; !Thread.interrupted(); i++) {
+        Listener l = listener;
+        if (l != null) {
+          double tilt = Math.toRadians(i % tilts);
+          l.onReading(InclinationEstimator.TYPE_ACCELEROMETER, 0,
+              (float) (9.81 * Math.cos(tilt)), (float) (9.81 * Math.sin(tilt)),
+              System.nanoTime());
+        }
+        try {
+          Thread.sleep(2);
+        } catch (InterruptedException e) {
+          return;
+        }
+      }
+    }
+
+    public void stop() {
+      listener = null;
+    }
+
+    public synchronized void release() {
+      releases++;
+      stop();
+      if (thread != null) {
+        thread.interrupt();
+        thread = null;
+      }
+    }
+
+    synchronized Thread getThread() {
+      return thread;
+    }
+  }
+
+  /** Counts inclination changes. */
+  static final class CountingCallback implements InclinationReader.Callback {
+    volatile int changes = 0;
+
+    public void onInclinationChanged(long timestamp) {
+      changes++;
+    }
+  }
+
+  /** Does nothing, the checks look at the card's state instead. */
+  static final class NoRedraws implements CardController.Listener,
+      InclinationReader.Callback {
+    public void onCursorMoved(int pixel, long eventTime) {
+    }
+
+    public void onInclinationChanged(long timestamp) {
+    }
+  }
+
+  private static Map<String, Check> checks() {
+    Map<String, Check> checks = new LinkedHashMap<String, Check>();
+    checks.put("ticks.empty", new Check() {
+      public void run() {
+        emptyCalibrationTicks();
+      }
+    });
+    checks.put("ticks.lines", new Check() {
+      public void run() {
+        tickLinesClearLabels();
+      }
+    });
+    checks.put("card.empty", new Check() {
+      public void run() {
+        emptyCalibrationCard();
+      }
+    });
+    checks.put("cursor.threads", new Check() {
+      public void run() throws InterruptedException {
+        cursorThreads();
+      }
+    });
+    checks.put("reader.level", new Check() {
+      public void run() throws InterruptedException {
+        readerLevel();
+      }
+    });
+    checks.put("reader.shutdown", new Check() {
+      public void run() throws InterruptedException {
+        readerShutdown();
+      }
+    });
+    return checks;
+  }
+
+  /**
+   * Arm length or eye separation of zero, as before the user calibrates,
+   * gives no ticks instead of stepping through decades from log10(0).
+   */
+  static void emptyCalibrationTicks() {
+    check(TickLayout.distances(XDPM, 0.065f, 0, false, WIDTH).length == 0,
+        "ticks with no arm length");
+    check(TickLayout.distances(XDPM, 0, 0.6f, false, WIDTH).length == 0,
+        "ticks with no eye separation");
+    check(TickLayout.distances(XDPM, 0, 0, true, WIDTH).length == 0,
+        "ticks with an empty calibration");
+    TickLayout ticks = new TickLayout(XDPM, 0.065f, 0, false, WIDTH,
+        new LabelFormatter(), "m", MEASURER, XDPI / 32, XDPI / 20);
+    check(ticks.getCount() == 0, "tick layout with no arm length");
+  }
+
+  /**
+   * Across screen densities, widths and calibrations, no label is drawn
+   * across the line of a tick whose label is in a lower row, and each
+   * label is measured once.
+   */
+  static void tickLinesClearLabels() {
+    final int [] measured = new int[1];
+    TickLayout.TextMeasurer measurer = new TickLayout.TextMeasurer() {
+      public float measureText(String text) {
+        measured[0]++;
+        return MEASURER.measureText(text);
+      }
+    };
+    LabelFormatter formatter = new LabelFormatter();
+    for (int dpi = 100; dpi <= 700; dpi += 20) {
+      float xdpm = RangeMath.dotsPerMeter(dpi);
+      for (float inches = 2; inches <= 7; inches += 0.5f) {
+        for (float arm = 0.4f; arm <= 0.8f; arm += 0.1f) {
+          for (int units = 0; units < 2; units++) {
+            measured[0] = 0;
+            TickLayout ticks = new TickLayout(xdpm, 0.065f, arm, units == 1,
+                (int) (inches * dpi), formatter, units == 1 ? "f" : "m",
+                measurer, dpi / 32f, dpi / 20f);
+            String where = dpi + " dpi, " + inches + " in, arm " + arm
+                + (units == 1 ? ", imperial" : "");
+            check(measured[0] <= ticks.getCount(), measured[0]
+                + " labels measured for " + ticks.getCount() + " ticks, "
+                + where);
+            checkTickLines(ticks, where);
+          }
+        }
+      }
+    }
+  }
+
+  private static void checkTickLines(TickLayout ticks, String where) {
+    for (int i = 0; i < ticks.getCount(); i++) {
+      if (ticks.getLabel(i) == null) {
+        continue;
+      }
+      float x = ticks.getX(i);
+      for (int j = 0; j < ticks.getCount(); j++) {
+        String label = ticks.getLabel(j);
+        if (label == null || ticks.getRow(j) >= ticks.getRow(i)) {
+          continue;
+        }
+        float left = ticks.getLabelX(j);
+        check(x < left || x > left + MEASURER.measureText(label),
+            "label " + label + " across the tick of "
+            + ticks.getLabel(i) + ", " + where);
+      }
+    }
+  }
+
+  /** The card neither solves nor lays out ticks for an empty calibration. */
+  static void emptyCalibrationCard() {
+    NoRedraws requests = new NoRedraws();
+    CardController card = new CardController(XDPI,
+        new InclinationReader(new ThreadSensorSource(), requests), requests,
+        new LabelFormatter(), MEASURER, "m", "f", "\u221E");
+    card.setWidth(WIDTH);
+    check(!card.solve(), "solved before calibrating");
+    check(card.getTicks() == null, "ticks before calibrating");
+    card.setCalibration(new Calibration(false, 0.065f, 0.6f));
+    check(card.solve(), "not solved once calibrated");
+    check(card.getTicks() != null && card.getTicks().getCount() > 0,
+        "no ticks once calibrated");
+    card.setCalibration(Calibration.EMPTY);
+    check(card.getTicks() == null, "ticks after clearing the calibration");
+  }
+
+  /**
+   * Input posted on one thread while frames apply it on another, as the card
+   * does without a lock, all reaches the red line.
+   */
+  static void cursorThreads() throws InterruptedException {
+    final int nudges = 1000000;
+    final CursorController cursor = new CursorController(XDPI);
+    cursor.setPixel(0);
+    Thread input = new Thread("input") {
+      @Override
+      public void run() {
+        for (int i = 0; i < nudges; i++) {
+          cursor.nudge(1);
+        }
+      }
+    };
+    input.start();
+    int frames = 0;
+    while (input.isAlive()) {
+      if (cursor.apply(Integer.MAX_VALUE)) {
+        frames++;
+      }
+    }
+    cursor.apply(Integer.MAX_VALUE);
+    check(cursor.getPixel() == nudges, "line at " + cursor.getPixel()
+        + " after " + nudges + " nudges applied in " + frames + " frames");
+  }
+
+  /**
+   * A phone held level still gets its inclination drawn, though the whole
+   * degree never changes from the reader's initial 0, and is told when
+   * shutting down stops it being shown.
+   */
+  static void readerLevel() throws InterruptedException {
+    ThreadSensorSource source = new ThreadSensorSource(1);
+    CountingCallback callback = new CountingCallback();
+    InclinationReader reader = new InclinationReader(source, callback);
+    reader.resume();
+    for (int i = 0; i < 100 && callback.changes == 0; i++) {
+      Thread.sleep(10);
+    }
+    check(callback.changes > 0, "no redraw for a level first reading");
+    check(reader.getInclination() == 0, "inclination "
+        + reader.getInclination() + " held level");
+    int changes = callback.changes;
+    reader.shutdown();
+    check(callback.changes > changes, "no redraw when support ended");
+  }
+
+  /**
+   * Shutting the reader down, as the card does when it is detached, ends
+   * the sensor thread and lets go of the callback, so a reader something
+   * still holds can't keep the card and its activity alive.
+   */
+  static void readerShutdown() throws InterruptedException {
+    ThreadSensorSource source = new ThreadSensorSource();
+    CountingCallback callback = new CountingCallback();
+    InclinationReader reader = new InclinationReader(source, callback);
+    retained = reader;
+    reader.resume();
+    check(reader.isSupported(), "not supported with an accelerometer");
+    while (callback.changes == 0) {
+      Thread.sleep(10);
+    }
+    Thread thread = source.getThread();
+    reader.shutdown();
+    thread.join(1000);
+    check(!thread.isAlive(), "sensor thread running after shutdown");
+    check(source.releases == 1, "source released " + source.releases
+        + " times");
+    check(!reader.isSupported(), "supported after shutdown");
+    reader.resume();
+    check(source.starts == 1, "started again after shutdown");
+
+    WeakReference<CountingCallback> ref =
+        new WeakReference<CountingCallback>(callback);
+    callback = null;
+    for (int i = 0; i < 20 && ref.get() != null; i++) {
+      System.gc();
+      Thread.sleep(10);
+    }
+    check(ref.get() == null, "callback reachable from a shut down reader");
+    retained = null;
+  }
+
+  private static void check(boolean ok, String what) {
+    if (!ok) {
+      throw new AssertionError(what);
+    }
+  }
+
+  /** @return null if the check passed, else why it failed */
+  private static String run(final Check check) throws InterruptedException {
+    final Throwable [] failure = new Throwable[1];
+    Thread thread = new Thread() {
+      @Override
+      public void run() {
+        try {
+          check.run();
+        } catch (Throwable t) {
+          failure[0] = t;
+        }
+      }
+    };
+    thread.setDaemon(true);
+    thread.start();
+    thread.join(TIME_LIMIT_MS);
+    if (thread.isAlive()) {
+      return "still running after " + TIME_LIMIT_MS + " ms";
+    }
+    return failure[0] == null ? null : failure[0].toString();
+  }
+
+  public static void main(String [] args) throws InterruptedException {
+    int failed = 0;
+    for (Map.Entry<String, Check> e : checks().entrySet()) {
+      if (!selected(e.getKey(), args)) {
+        continue;
+      }
+      String failure = run(e.getValue());
+      System.out.println(e.getKey() + "\t"
+          + (failure == null ? "ok" : "FAILED: " + failure));
+      if (failure != null) {
+        failed++;
+      }
+    }
+    System.exit(failed == 0 ? 0 : 1);
+  }
+
+  private static boolean selected(String name, String [] prefixes) {
+    if (prefixes.length == 0) {
+      return true;
+    }
+    for (String p : prefixes) {
+      if (name.startsWith(p)) {
+        return true;
+      }
+    }
+    return false;
+  }
+}
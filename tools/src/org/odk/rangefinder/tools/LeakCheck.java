@@ -0,0 +1,190 @@
+/*
+ * Copyright (C) 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package org.odk.rangefinder.tools;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Launches and finishes the range finder over and over on a phone or
+ * emulator through adb, then counts the activities still alive in its
+ * process.  Each RangeCard holds its RangeFinder, so a card kept alive by
+ * the background executor, the journal, history or help caches, the
+ * retained layout or the sensor thread shows up as a live activity.  Once
+ * the last launch is finished there should be none; the exit status is 1
+ * if there are any, and 2 if adb failed.
+ * <p>
+ * The count is the Activities line of dumpsys meminfo.  Before reading it
+ * the process is sent SIGUSR1, which makes the VM collect garbage; that
+ * needs a debuggable build, for run-as.  With -rotate each launch is also
+ * turned to landscape and back, so the card is recreated and takes over
+ * the retained layout, which needs Android 4.2 or later for the rotation
+ * settings.
+ * <p>
+ * Usage:
+ * <pre>
+ * LeakCheck [-n launches] [-rotate] [-s serial]
+ * </pre>
+ */
+public class LeakCheck {
+
+  private static final String PACKAGE = "org.odk.rangefinder";
+  private static final String ACTIVITY = PACKAGE + "/.RangeFinder";
+  private static final int KEYCODE_BACK = 4;
+  // Long enough for a finished activity to be destroyed, or recreated.
+  private static final long SETTLE_MS = 1500;
+  private static final Pattern ACTIVITIES =
+      Pattern.compile("Activities:\\s*(\\d+)");
+
+  private final String serial;
+
+  LeakCheck(String serial) {
+    this.serial = serial;
+  }
+
+  /** Runs an adb command and returns what it printed. */
+  String adb(String... args) throws IOException, InterruptedException {
+    List<String> command = new ArrayList<String>();
+    command.add("adb");
+    if (serial != null) {
+      command.add("-s");
+      command.add(serial);
+    }
+    for (String arg : args) {
+      command.add(arg);
+    }
+    Process process = new ProcessBuilder(command).redirectErrorStream(true)
+        .start();
+    String output = readAll(process.getInputStream());
+    if (process.waitFor() != 0) {
+      throw new IOException(command + " failed: " + output.trim());
+    }
+    return output;
+  }
+
+  private static String readAll(InputStream in) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte [] buf = new byte[4096];
+    int n;
+    while ((n = in.read(buf)) > 0) {
+      out.write(buf, 0, n);
+    }
+    in.close();
+    return out.toString("UTF-8");
+  }
+
+  void launchAndFinish(boolean rotate)
+      throws IOException, InterruptedException {
+    adb("shell", "am", "start", "-W", "-n", ACTIVITY);
+    if (rotate) {
+      for (int rotation = 1; rotation >= 0; rotation--) {
+        adb("shell", "settings", "put", "system", "user_rotation",
+            String.valueOf(rotation));
+        Thread.sleep(SETTLE_MS);
+      }
+    }
+    adb("shell", "input", "keyevent", String.valueOf(KEYCODE_BACK));
+    Thread.sleep(SETTLE_MS);
+  }
+
+  /** Asks the VM to collect garbage, if the build lets us signal it. */
+  void collectGarbage() throws InterruptedException {
+    try {
+      String pid = adb("shell", "pidof", PACKAGE).trim();
+      if (pid.length() > 0) {
+        adb("shell", "run-as", PACKAGE, "kill", "-10", pid);
+        Thread.sleep(SETTLE_MS);
+      }
+    } catch (IOException e) {
+      System.err.println("Couldn't collect garbage, counting anyway: "
+          + e.getMessage());
+    }
+  }
+
+  /** @return the activities alive in the process, or -1 if not running */
+  int countActivities() throws IOException, InterruptedException {
+    Matcher m = ACTIVITIES.matcher(adb("shell", "dumpsys", "meminfo",
+        PACKAGE));
+    return m.find() ? Integer.parseInt(m.group(1)) : -1;
+  }
+
+  /** @return the activities alive after the launches, see countActivities */
+  int run(int launches, boolean rotate)
+      throws IOException, InterruptedException {
+    String autoRotate = null;
+    if (rotate) {
+      autoRotate = adb("shell", "settings", "get", "system",
+          "accelerometer_rotation").trim();
+      adb("shell", "settings", "put", "system", "accelerometer_rotation",
+          "0");
+    }
+    try {
+      for (int i = 0; i < launches; i++) {
+        launchAndFinish(rotate);
+      }
+    } finally {
+      if (autoRotate != null) {
+        adb("shell", "settings", "put", "system", "accelerometer_rotation",
+            autoRotate);
+      }
+    }
+    collectGarbage();
+    return countActivities();
+  }
+
+  public static void main(String [] args) throws InterruptedException {
+    int launches = 20;
+    boolean rotate = false;
+    String serial = null;
+    for (int i = 0; i < args.length; i++) {
+      if (args[i].equals("-n") && i + 1 < args.length) {
+        launches = Integer.parseInt(args[++i]);
+      } else if (args[i].equals("-rotate")) {
+        rotate = true;
+      } else if (args[i].equals("-s") && i + 1 < args.length) {
+        serial = args[++i];
+      } else {
+        System.err.println("Usage: LeakCheck [-n launches] [-rotate] "
+            + "[-s serial]");
+        System.exit(2);
+      }
+    }
+    LeakCheck check = new LeakCheck(serial);
+    int alive;
+    try {
+      alive = check.run(launches, rotate);
+    } catch (IOException e) {
+      System.err.println(e.getMessage());
+      System.exit(2);
+      return;
+    }
+    if (alive < 0) {
+      System.err.println("The process isn't running, nothing to count");
+      System.exit(2);
+    }
+    System.out.println(launches + " launches" + (rotate ? " with rotation"
+        : "") + ", " + alive + " activities alive"
+        + (alive > 0 ? ", should be 0" : ""));
+    System.exit(alive > 0 ? 1 : 0);
+  }
+}
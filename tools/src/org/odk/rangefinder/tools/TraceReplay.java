@@ -0,0 +1,536 @@
+/*
+ * Copyright (C) 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package org.odk.rangefinder.tools;
+
+import org.odk.rangefinder.Calibration;
+import org.odk.rangefinder.CardController;
+import org.odk.rangefinder.CursorController;
+import org.odk.rangefinder.FrameStats;
+import org.odk.rangefinder.InclinationEstimator;
+import org.odk.rangefinder.InclinationReader;
+import org.odk.rangefinder.LabelFormatter;
+import org.odk.rangefinder.SensorSource;
+import org.odk.rangefinder.TickLayout;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Replays recorded input and sensor traces through the range card's
+ * CardController and InclinationReader, the same code the card runs on a
+ * phone, on a plain JVM as fast as it can, and reports how much work they
+ * caused: frames redrawn, distances solved, range tables
+ * built, inclination changes, wall time and bytes allocated.  Runs of the
+ * same trace are deterministic, so the counts can be compared between
+ * versions to catch regressions before they reach a phone.
+ * <p>
+ * With -check, each trace is replayed a few more times measuring what every
+ * frame that didn't build a range table allocates.  Applying input, looking
+ * up the distance and label, and formatting the inclination, batch progress
+ * and stats overlay text must allocate nothing, so that the card never
+ * collects garbage while it is dragged; the exit status is 1 if any frame
+ * did in every run.  The Canvas and Paint calls RangeCard.drawCard makes
+ * around that text need Android, so they aren't measured.
+ * <p>
+ * A trace is a text file with one event per line, the time in milliseconds
+ * first:
+ * <pre>
+ * # comment
+ * 0 down 120.5          touch down at x
+ * 4 history 121.0       sample batched into the next move
+ * 8 move 130.0          touch moved to x
+ * 16 up 131.0           touch lifted at x
+ * 20 ball -0.3          trackball moved by x
+ * 24 key left           dpad left or right tapped
+ * 28 accel 0.1 9.7 1.2  accelerometer reading, also gyro, gravity, rotation
+ * </pre>
+ * Usage:
+ * <pre>
+ * TraceReplay [-n iterations] [-frame ms] [-predict] [-check] trace...
+ * TraceReplay generate seconds [seed]
+ * </pre>
+ */
+public class TraceReplay {
+
+  // Event kinds.
+  private static final int DOWN = 0;
+  private static final int UP = 1;
+  private static final int MOVE = 2;
+  private static final int HISTORY = 3;
+  private static final int BALL = 4;
+  private static final int KEY = 5;
+  private static final int SENSOR = 6;
+
+  // The card the traces are replayed on, a typical 160 dpi phone held in
+  // landscape, with an average calibration.
+  private static final int WIDTH = 480;
+  private static final float XDPI = 160;
+  private static final float EYE_SEPARATION = 0.065f;  // meters
+  private static final float ARM_LENGTH = 0.6f;  // meters
+  private static final int WARMUP = 5;
+  private static final int CHECK_RUNS = 3;
+  // About the width of RangeCard's 20 pixel labels.
+  private static final TickLayout.TextMeasurer MEASURER =
+      new TickLayout.TextMeasurer() {
+        public float measureText(String text) {
+          return text.length() * 11;
+        }
+      };
+
+  /** A trace parsed into primitive arrays, so replaying doesn't parse. */
+  static final class Trace {
+    final String name;
+    int size = 0;
+    long [] times = new long[256];
+    int [] kinds = new int[256];
+    int [] types = new int[256];
+    float [] xs = new float[256];
+    float [] ys = new float[256];
+    float [] zs = new float[256];
+
+    Trace(String name) {
+      this.name = name;
+    }
+
+    void add(long time, int kind, int type, float x, float y, float z) {
+      if (size == times.length) {
+        int n = size * 2;
+        times = Arrays.copyOf(times, n);
+        kinds = Arrays.copyOf(kinds, n);
+        types = Arrays.copyOf(types, n);
+        xs = Arrays.copyOf(xs, n);
+        ys = Arrays.copyOf(ys, n);
+        zs = Arrays.copyOf(zs, n);
+      }
+      times[size] = time;
+      kinds[size] = kind;
+      types[size] = type;
+      xs[size] = x;
+      ys[size] = y;
+      zs[size] = z;
+      size++;
+    }
+  }
+
+  /** Work done replaying a trace once. */
+  static final class Result {
+    long frames;
+    long solves;
+    long tableBuilds;
+    long inclinationChanges;
+    int finalPixel;
+    int finalInclination;
+    // With measureFrames, frames that didn't build a table and what they
+    // allocated.
+    long measuredFrames;
+    long frameBytes;
+  }
+
+  static Trace parse(String path) throws IOException {
+    Trace trace = new Trace(path);
+    BufferedReader in = new BufferedReader(new FileReader(path));
+    try {
+      String line;
+      int lineNumber = 0;
+      while ((line = in.readLine()) != null) {
+        lineNumber++;
+        line = line.trim();
+        if (line.length() == 0 || line.startsWith("#")) {
+          continue;
+        }
+        String [] f = line.split("\\s+");
+        try {
+          long time = Long.parseLong(f[0]);
+          String kind = f[1];
+          if (kind.equals("down")) {
+            trace.add(time, DOWN, 0, Float.parseFloat(f[2]), 0, 0);
+          } else if (kind.equals("move")) {
+            trace.add(time, MOVE, 0, Float.parseFloat(f[2]), 0, 0);
+          } else if (kind.equals("up")) {
+            trace.add(time, UP, 0, Float.parseFloat(f[2]), 0, 0);
+          } else if (kind.equals("history")) {
+            trace.add(time, HISTORY, 0, Float.parseFloat(f[2]), 0, 0);
+          } else if (kind.equals("ball")) {
+            trace.add(time, BALL, 0, Float.parseFloat(f[2]), 0, 0);
+          } else if (kind.equals("key")) {
+            trace.add(time, KEY, 0, f[2].equals("left") ? 1 : -1, 0, 0);
+          } else {
+            trace.add(time, SENSOR, sensorType(kind), Float.parseFloat(f[2]),
+                Float.parseFloat(f[3]), Float.parseFloat(f[4]));
+          }
+        } catch (RuntimeException e) {
+          throw new IOException(path + ":" + lineNumber + ": bad event: "
+              + line);
+        }
+      }
+    } finally {
+      in.close();
+    }
+    return trace;
+  }
+
+  private static int sensorType(String kind) {
+    if (kind.equals("accel")) {
+      return InclinationEstimator.TYPE_ACCELEROMETER;
+    } else if (kind.equals("gyro")) {
+      return InclinationEstimator.TYPE_GYROSCOPE;
+    } else if (kind.equals("gravity")) {
+      return InclinationEstimator.TYPE_GRAVITY;
+    } else if (kind.equals("rotation")) {
+      return InclinationEstimator.TYPE_ROTATION_VECTOR;
+    }
+    throw new IllegalArgumentException(kind);
+  }
+
+  /**
+   * Feeds a trace's sensor readings to an InclinationReader, as the device's
+   * sensors would, once the reader has started listening.
+   */
+  static final class TraceSensorSource implements SensorSource {
+    private final int types;
+    private SensorSource.Listener listener;
+
+    TraceSensorSource(Trace trace) {
+      int t = 0;
+      for (int i = 0; i < trace.size; i++) {
+        if (trace.kinds[i] == SENSOR) {
+          t |= 1 << trace.types[i];
+        }
+      }
+      types = t;
+    }
+
+    public int getTypes() {
+      return types;
+    }
+
+    public int start(SensorSource.Listener listener) {
+      this.listener = listener;
+      return types;
+    }
+
+    public void stop() {
+      listener = null;
+    }
+
+    public void release() {
+      stop();
+    }
+
+    void deliver(int type, float x, float y, float z, long timestamp) {
+      if (listener != null) {
+        listener.onReading(type, x, y, z, timestamp);
+      }
+    }
+  }
+
+  /** Asks for a frame when the card would, see RangeCard. */
+  static final class FrameRequests implements CardController.Listener,
+      InclinationReader.Callback {
+    boolean redraw = true;
+    long inclinationChanges;
+
+    public void onCursorMoved(int pixel, long eventTime) {
+      redraw = true;
+    }
+
+    public void onInclinationChanged(long timestamp) {
+      inclinationChanges++;
+      redraw = true;
+    }
+  }
+
+  /**
+   * Replays a trace through the card's controller and inclination reader,
+   * on a display refreshing every frameMillis.  Input and readings only ask
+   * for a frame, and each frame applies the pending input and solves the
+   * distance, as RangeCard.drawCard does.
+   * @param measureFrames whether to measure what each frame allocates
+   */
+  static Result replay(Trace trace, long frameMillis, boolean predict,
+      boolean measureFrames) {
+    Result result = new Result();
+    LabelFormatter formatter = new LabelFormatter();
+    FrameStats stats = new FrameStats();
+    FrameRequests requests = new FrameRequests();
+    TraceSensorSource sensors = new TraceSensorSource(trace);
+    InclinationReader reader = new InclinationReader(sensors, requests);
+    CardController card = new CardController(XDPI, reader, requests,
+        formatter, MEASURER, "m", "f", "\u221E");
+    card.setCalibration(new Calibration(false, EYE_SEPARATION, ARM_LENGTH));
+    card.setPrediction(predict);
+    card.setWidth(WIDTH);
+    card.setPixel(WIDTH / 2);
+    reader.resume();
+    char [] inclinationChars = new char[64];
+    char [] batchChars = new char[64];
+    char [] statsChars = new char[128];
+    long nextFrame = trace.size > 0 ? trace.times[0] : 0;
+    for (int i = 0; i <= trace.size; i++) {
+      long time = i < trace.size ? trace.times[i] : Long.MAX_VALUE;
+      // Draw every frame that came due before this event.
+      while (nextFrame <= time && (requests.redraw || i < trace.size)) {
+        if (requests.redraw) {
+          requests.redraw = false;
+          result.frames++;
+          long before = measureFrames ? allocatedBytes() : 0;
+          long drawStart = System.nanoTime();
+          // The text RangeCard.drawCard and redrawCursor make each frame.
+          card.applyPendingInput();
+          if (card.solve()) {
+            stats.recordSolve(card.builtTable());
+          }
+          card.getLabel();
+          card.getLabelIfSolved(card.getPixel());
+          card.formatInclination("", "\u00B0", inclinationChars);
+          int n = formatter.appendString("Batch ", batchChars, 0);
+          n = formatter.appendInt((int) result.frames, batchChars, n);
+          batchChars[n++] = '/';
+          formatter.appendInt(trace.size, batchChars, n);
+          stats.recordFrame(System.nanoTime() - drawStart);
+          for (int line = 0; line < FrameStats.LINES; line++) {
+            stats.formatLine(line, formatter, statsChars);
+          }
+          if (measureFrames && !card.builtTable()) {
+            result.measuredFrames++;
+            result.frameBytes += allocatedBytes() - before
+                - measuringOverhead;
+          }
+        }
+        nextFrame += frameMillis;
+      }
+      if (i == trace.size) {
+        break;
+      }
+      float x = trace.xs[i];
+      switch (trace.kinds[i]) {
+        case DOWN:
+          card.touch(CursorController.ACTION_DOWN, x, time);
+          break;
+        case MOVE:
+          card.touch(CursorController.ACTION_MOVE, x, time);
+          break;
+        case UP:
+          card.touch(CursorController.ACTION_UP, x, time);
+          break;
+        case HISTORY:
+          card.touchHistory(x, time);
+          break;
+        case BALL:
+          card.trackball(x, time);
+          break;
+        case KEY:
+          card.press((int) x, time);
+          card.release();
+          break;
+        default:
+          sensors.deliver(trace.types[i], x, trace.ys[i], trace.zs[i],
+              time * 1000000L);
+          break;
+      }
+    }
+    reader.shutdown();
+    result.solves = card.getSolveCount();
+    result.tableBuilds = card.getTableBuildCount();
+    result.inclinationChanges = requests.inclinationChanges;
+    result.finalPixel = card.getPixel();
+    result.finalInclination = reader.getInclination();
+    return result;
+  }
+
+  // What reading the allocated bytes itself allocates, subtracted from
+  // each frame's measurement.
+  private static long measuringOverhead = 0;
+
+  /**
+   * @return bytes allocated by this thread so far, or -1 if the JVM can't
+   *     tell
+   */
+  private static long allocatedBytes() {
+    ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+    if (bean instanceof com.sun.management.ThreadMXBean) {
+      return ((com.sun.management.ThreadMXBean) bean)
+          .getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+    return -1;
+  }
+
+  /**
+   * Writes a synthetic trace: a 120 Hz drag with samples batched two to an
+   * event, a trackball roll, some dpad presses, and a 50 Hz accelerometer
+   * with hand shake throughout.
+   */
+  static void generate(int seconds, long seed, PrintStream out) {
+    Random random = new Random(seed);
+    out.println("# Synthetic trace, seed " + seed);
+    long end = seconds * 1000L;
+    long dragEnd = end / 2;
+    long time = 0;
+    long nextAccel = 0;
+    long nextTouch = 0;
+    int touchSample = 0;
+    boolean down = false;
+    while (time < end) {
+      if (time >= nextAccel) {
+        double tilt = Math.toRadians(10 + 5 * Math.sin(time / 700.0));
+        float z = (float) (-9.81 * Math.sin(tilt) + shake(random));
+        float y = (float) (9.81 * Math.cos(tilt) + shake(random));
+        float x = (float) shake(random);
+        out.println(time + " accel " + fmt(x) + " " + fmt(y) + " " + fmt(z));
+        nextAccel += 20;
+      }
+      if (time < dragEnd && time >= nextTouch) {
+        float x = (float) (WIDTH / 2 + WIDTH / 3 * Math.sin(time / 400.0)
+            + random.nextGaussian());
+        if (!down) {
+          out.println(time + " down " + fmt(x));
+          down = true;
+        } else if (touchSample % 2 == 1) {
+          out.println(time + " history " + fmt(x));
+        } else {
+          out.println(time + " move " + fmt(x));
+        }
+        touchSample++;
+        nextTouch += 8;
+      } else if (down && time >= dragEnd) {
+        out.println(time + " up " + fmt((float) (WIDTH / 2
+            + WIDTH / 3 * Math.sin(time / 400.0))));
+        down = false;
+      } else if (time > dragEnd && time < dragEnd + 1000 && time % 16 == 0) {
+        out.println(time + " ball "
+            + fmt((float) (random.nextGaussian() / 4)));
+      } else if (time > dragEnd + 1000 && time % 150 == 0) {
+        out.println(time + " key " + (random.nextBoolean() ? "left" : "right"));
+      }
+      time++;
+    }
+  }
+
+  private static double shake(Random random) {
+    return random.nextGaussian() * 0.2;
+  }
+
+  private static String fmt(float f) {
+    return String.format(Locale.US, "%.3f", f);
+  }
+
+  public static void main(String [] args) throws IOException {
+    if (args.length > 0 && args[0].equals("generate")) {
+      if (args.length < 2) {
+        usage();
+        return;
+      }
+      generate(Integer.parseInt(args[1]),
+          args.length > 2 ? Long.parseLong(args[2]) : 1, System.out);
+      return;
+    }
+    int iterations = 50;
+    long frameMillis = 16;
+    boolean predict = false;
+    boolean check = false;
+    int first = 0;
+    while (first < args.length && args[first].startsWith("-")) {
+      if (args[first].equals("-n")) {
+        iterations = Integer.parseInt(args[++first]);
+      } else if (args[first].equals("-frame")) {
+        frameMillis = Long.parseLong(args[++first]);
+      } else if (args[first].equals("-predict")) {
+        predict = true;
+      } else if (args[first].equals("-check")) {
+        check = true;
+      } else {
+        usage();
+        return;
+      }
+      first++;
+    }
+    if (first == args.length) {
+      usage();
+      return;
+    }
+    if (check) {
+      if (allocatedBytes() < 0) {
+        System.err.println("-check: this JVM can't measure allocations");
+        System.exit(2);
+      }
+      long overhead = Long.MAX_VALUE;
+      for (int i = 0; i < 1000; i++) {
+        long before = allocatedBytes();
+        overhead = Math.min(overhead, allocatedBytes() - before);
+      }
+      measuringOverhead = overhead;
+    }
+    int failed = 0;
+    System.out.println("trace\tevents\tframes\tsolves\ttables\tinclination"
+        + "\tpixel\tms/run\tbytes/run");
+    for (int a = first; a < args.length; a++) {
+      Trace trace = parse(args[a]);
+      Result result = null;
+      for (int i = 0; i < WARMUP; i++) {
+        result = replay(trace, frameMillis, predict, false);
+      }
+      long bytes = allocatedBytes();
+      long start = System.nanoTime();
+      for (int i = 0; i < iterations; i++) {
+        result = replay(trace, frameMillis, predict, false);
+      }
+      long nanos = System.nanoTime() - start;
+      long allocated = bytes < 0 ? -1 : allocatedBytes() - bytes;
+      System.out.println(trace.name + "\t" + trace.size + "\t"
+          + result.frames + "\t" + result.solves + "\t" + result.tableBuilds
+          + "\t" + result.inclinationChanges + "\t" + result.finalPixel + "\t"
+          + String.format(Locale.US, "%.3f", nanos / 1e6 / iterations) + "\t"
+          + (allocated < 0 ? "?" : String.valueOf(allocated / iterations)));
+      if (check) {
+        // Code compiled without measuring can be deoptimized once it is,
+        // which allocates the objects compilation had done away with, so
+        // only an allocation that every run makes counts.
+        Result measured = null;
+        for (int i = 0; i < CHECK_RUNS; i++) {
+          Result run = replay(trace, frameMillis, predict, true);
+          if (measured == null || run.frameBytes < measured.frameBytes) {
+            measured = run;
+          }
+        }
+        System.out.println(trace.name + "\t" + measured.frameBytes
+            + " bytes allocated in " + measured.measuredFrames
+            + " frames without a table build"
+            + (measured.frameBytes > 0 ? ", should be 0" : ""));
+        if (measured.frameBytes > 0) {
+          failed++;
+        }
+      }
+    }
+    if (failed > 0) {
+      System.exit(1);
+    }
+  }
+
+  private static void usage() {
+    System.err.println("Usage: TraceReplay [-n iterations] [-frame ms] "
+        + "[-predict] [-check] trace...\n"
+        + "       TraceReplay generate seconds [seed]");
+  }
+}